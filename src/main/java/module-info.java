@@ -2,17 +2,27 @@ module net.pincette.jes.tel {
   requires io.opentelemetry.api;
   requires io.opentelemetry.sdk.common;
   requires io.opentelemetry.exporter.otlp;
+  // Internal API, only used in OtlpMarshalers.
+  requires io.opentelemetry.exporter.internal;
+  requires io.opentelemetry.exporter.internal.otlp;
   requires io.opentelemetry.sdk.logs;
   requires io.opentelemetry.sdk;
   requires net.pincette.config;
   requires typesafe.config;
   requires io.opentelemetry.sdk.metrics;
   requires net.pincette.netty.http;
+  requires io.netty.buffer;
+  requires io.netty.codec.http;
   requires net.pincette.rs;
   requires net.pincette.common;
   requires net.pincette.json;
   requires java.logging;
+  requires java.net.http;
+  requires java.management;
+  requires jdk.management;
+  requires jdk.jfr;
   requires java.json;
+  requires com.fasterxml.jackson.core;
   requires io.opentelemetry.context;
 
   exports net.pincette.jes.tel;
@@ -67,7 +67,7 @@ public class EventTrace {
     this.serviceNamespace = serviceNamespace;
     this.serviceVersion = serviceVersion;
     this.timestamp = timestamp;
-    this.traceId = traceId != null ? traceId.toLowerCase() : null;
+    this.traceId = traceId;
     this.username = username;
   }
 
@@ -235,7 +235,29 @@ public class EventTrace {
         serviceNamespace,
         serviceVersion,
         timestamp,
-        traceId,
+        traceId != null ? traceId.toLowerCase() : null,
+        username);
+  }
+
+  /**
+   * Sets the trace ID from its binary form. It is always lower case, so no conversion is needed.
+   *
+   * @param ids the trace identifiers. Only the trace ID is used.
+   * @return The new event trace.
+   * @since 1.0.8
+   */
+  public EventTrace withTraceId(final TraceIds ids) {
+    return new EventTrace(
+        attributes,
+        moduleName,
+        moduleVersion,
+        name,
+        payload,
+        serviceName,
+        serviceNamespace,
+        serviceVersion,
+        timestamp,
+        ids != null && ids.isValid() ? ids.traceIdHex() : null,
         username);
   }
 
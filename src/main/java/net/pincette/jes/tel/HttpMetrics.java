@@ -1,13 +1,22 @@
 package net.pincette.jes.tel;
 
 import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
 import static java.util.Optional.ofNullable;
+import static net.pincette.jes.tel.OtelUtil.serviceInstanceId;
 import static net.pincette.rs.LambdaSubscriber.lambdaSubscriber;
-import static net.pincette.util.Util.with;
 
 import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
 import io.opentelemetry.api.metrics.Meter;
 import io.opentelemetry.api.metrics.ObservableLongMeasurement;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Flow.Subscriber;
@@ -20,30 +29,68 @@ import net.pincette.netty.http.Metrics;
  * @author Werner Donné
  */
 public class HttpMetrics {
+  private static final List<Long> DURATION_BUCKETS =
+      List.of(5L, 10L, 25L, 50L, 75L, 100L, 250L, 500L, 750L, 1000L, 2500L, 5000L, 10000L);
+  private static final long EXEMPLAR_INTERVAL_NANOS = 60000000000L;
+  private static final int EXEMPLARS_PER_SERIES = 4;
   private static final String HTTP_REQUEST_METHOD = "http.request.method";
   private static final String HTTP_RESPONSE_STATUS_CODE = "http.response.status_code";
-  private static final String HTTP_SERVER_REQUESTS = "http.server.requests";
   private static final String HTTP_SERVER_AVERAGE_DURATION_MILLIS =
       "http.server.average_duration_millis";
   private static final String HTTP_SERVER_AVERAGE_REQUEST_BYTES =
       "http.server.average_request_bytes";
   private static final String HTTP_SERVER_AVERAGE_RESPONSE_BYTES =
       "http.server.average_response_bytes";
+  private static final String HTTP_SERVER_DURATION_MILLIS = "http.server.duration_millis";
+  private static final String HTTP_SERVER_REQUESTS = "http.server.requests";
+  private static final String HTTP_SERVER_REQUEST_BYTES = "http.server.request_bytes";
+  private static final String HTTP_SERVER_RESPONSE_BYTES = "http.server.response_bytes";
   private static final String INSTANCE = "instance";
+  private static final int MAX_SERIES = 10000;
   private static final String NETWORK_PROTOCOL_NAME = "network.protocol.name";
   private static final String URL_SCHEME = "url.scheme";
 
   private HttpMetrics() {}
 
-  private static Attributes addDimensions(
-      final Attributes attributes, final Metrics metrics, final String instance) {
-    return ofNullable(attributes).orElseGet(Attributes::empty).toBuilder()
-        .put(HTTP_REQUEST_METHOD, metrics.method())
-        .put(HTTP_RESPONSE_STATUS_CODE, metrics.statusCode())
+  private static Attributes addDimensions(final Dimensions dimensions, final String instance) {
+    return dimensions.attributes.toBuilder()
+        .put(HTTP_REQUEST_METHOD, dimensions.method)
+        .put(HTTP_RESPONSE_STATUS_CODE, dimensions.statusCode)
         .put(INSTANCE, instance)
         .build();
   }
 
+  private static AutoCloseable averageGauge(
+      final Meter meter, final String name, final Map<Attributes, AverageCounter> counters) {
+    return meter
+        .gaugeBuilder(name)
+        .ofLongs()
+        .buildWithCallback(measurement -> recordAverage(measurement, counters));
+  }
+
+  private static <K, V> V cached(final Map<K, V> map, final K key, final Function<K, V> create) {
+    final V value = map.get(key);
+
+    return value != null || map.size() >= MAX_SERIES ? value : map.computeIfAbsent(key, create);
+  }
+
+  private static void close(final List<AutoCloseable> gauges) throws Exception {
+    for (final AutoCloseable gauge : gauges) {
+      gauge.close();
+    }
+  }
+
+  private static Context exemplarContext(final TraceIds ids) {
+    return Context.root()
+        .with(
+            Span.wrap(
+                SpanContext.create(
+                    ids.traceIdHex(),
+                    ids.spanIdHex(),
+                    TraceFlags.getSampled(),
+                    TraceState.getDefault())));
+  }
+
   /**
    * Sets standard attributes that are relevant for aggregated metrics.
    *
@@ -57,93 +104,177 @@ public class HttpMetrics {
         .build();
   }
 
+  private static boolean offerExemplar(
+      final Map<Attributes, SlowestSamples> exemplars,
+      final Attributes attributes,
+      final TraceIds ids,
+      final long millis) {
+    if (ids == null || !ids.isValid() || !ids.hasSpanId()) {
+      return false;
+    }
+
+    final SlowestSamples samples =
+        cached(
+            exemplars,
+            attributes,
+            a -> new SlowestSamples(EXEMPLARS_PER_SERIES, EXEMPLAR_INTERVAL_NANOS));
+
+    return samples != null && samples.offer(millis, nanoTime());
+  }
+
+  private static void recordAverage(
+      final Map<Attributes, AverageCounter> counters,
+      final Attributes attributes,
+      final long value) {
+    final AverageCounter counter = cached(counters, attributes, a -> new AverageCounter());
+
+    if (counter != null) {
+      counter.add(value);
+    }
+  }
+
   private static void recordAverage(
       final ObservableLongMeasurement measurement, final Map<Attributes, AverageCounter> counters) {
     counters.forEach((k, v) -> measurement.record(v.consumeAverage(), k));
   }
 
-  private static void recordValue(
-      final ObservableLongMeasurement measurement, final Map<Attributes, Long> counters) {
-    counters.forEach((k, v) -> measurement.record(v, k));
+  /**
+   * Consumes HTTP metrics like {@link #subscriber(Meter, Function, String)}, where the instance is
+   * the <code>service.instance.id</code> of the resource that is created by {@link
+   * OtelUtil#otelResource(String, String, String)}.
+   *
+   * @param meter the meter object from which the counters are created.
+   * @param pathDimensions the function that creates additional attributes for the metrics. The
+   *     function may return <code>null</code>.
+   * @return The subscriber.
+   * @since 1.0.8
+   */
+  public static Subscriber<Metrics> subscriber(
+      final Meter meter, final Function<String, Attributes> pathDimensions) {
+    return subscriber(meter, pathDimensions, serviceInstanceId());
   }
 
   /**
-   * Consumes HTTP metrics with which the counters <code>http.server.average_duration_millis</code>,
-   * <code>http.server.average_request_bytes</code>, <code>http.server.average_response_bytes</code>
-   * and <code>http.server.request</code> are fed. The former three keep the averages within the
-   * measurement interval, which is defined in the meter. All counters are reset after each
-   * measurement interval.
+   * Consumes HTTP metrics with which the histogram <code>http.server.duration_millis</code> and the
+   * counters <code>http.server.request_bytes</code>, <code>http.server.response_bytes</code> and
+   * <code>http.server.requests</code> are fed. The instruments are synchronous, so the SDK does the
+   * aggregation. Averages are obtained by dividing a sum by the number of requests, over any
+   * interval. Whether the values are reset after each collection depends on the temporality of the
+   * metric exporter.
+   *
+   * <p>The gauges <code>http.server.average_duration_millis</code>, <code>
+   * http.server.average_request_bytes</code> and <code>http.server.average_response_bytes</code> of
+   * the previous release are still fed with the averages within the collection interval, but they
+   * are deprecated and will be removed in the next release.
    *
    * @param meter the meter object from which the counters are created.
    * @param pathDimensions the function that creates additional attributes for the metrics. The
-   *     higher the number of dimensions, the more internal counters there will be. The function may
-   *     return <code>null</code>.
+   *     higher the number of dimensions, the more series there will be. The function may return
+   *     <code>null</code>.
    * @param instance represents a running instance in order to cope with the case where multiple
    *     instances are present.
    * @return The subscriber.
    */
   public static Subscriber<Metrics> subscriber(
       final Meter meter, final Function<String, Attributes> pathDimensions, final String instance) {
-    final Map<Attributes, AverageCounter> durationMillis = new ConcurrentHashMap<>();
-    final AutoCloseable durationMillisCounter =
-        meter
-            .gaugeBuilder(HTTP_SERVER_AVERAGE_DURATION_MILLIS)
-            .ofLongs()
-            .buildWithCallback(measurement -> recordAverage(measurement, durationMillis));
-    final Map<Attributes, AverageCounter> requestBytes = new ConcurrentHashMap<>();
-    final AutoCloseable requestBytesCounter =
-        meter
-            .gaugeBuilder(HTTP_SERVER_AVERAGE_REQUEST_BYTES)
-            .ofLongs()
-            .buildWithCallback(measurement -> recordAverage(measurement, requestBytes));
-    final Map<Attributes, AverageCounter> responseBytes = new ConcurrentHashMap<>();
-    final AutoCloseable responseBytesCounter =
+    return subscriber(meter, pathDimensions, instance, metrics -> null);
+  }
+
+  /**
+   * Consumes HTTP metrics like {@link #subscriber(Meter, Function, String)} and attaches exemplars
+   * to the histogram <code>http.server.duration_millis</code>. Per series the slowest requests of
+   * each minute are selected in a fixed-size, lock-free structure. Only those are recorded with
+   * their trace context, which makes the SDK keep their trace ID, span ID and timestamp as
+   * exemplars. This requires the default <code>trace_based</code> exemplar filter. Because the SDK
+   * keeps an exemplar per histogram bucket, the slow buckets get one in every interval. The
+   * attributes of a series are built only once and then looked up by the result of <code>
+   * pathDimensions</code>, the method and the status code. At most 10000 series are cached. Beyond
+   * that the attributes are built for every request, no exemplars are attached and the deprecated
+   * average gauges are not fed.
+   *
+   * @param meter the meter object from which the counters are created.
+   * @param pathDimensions the function that creates additional attributes for the metrics. The
+   *     function may return <code>null</code>.
+   * @param instance represents a running instance in order to cope with the case where multiple
+   *     instances are present.
+   * @param traceIds the function that returns the trace context of a request. It may return
+   *     <code>null</code>.
+   * @return The subscriber.
+   * @since 1.0.8
+   */
+  public static Subscriber<Metrics> subscriber(
+      final Meter meter,
+      final Function<String, Attributes> pathDimensions,
+      final String instance,
+      final Function<Metrics, TraceIds> traceIds) {
+    final Map<Dimensions, Attributes> dimensions = new ConcurrentHashMap<>();
+    final LongHistogram durationMillis =
         meter
-            .gaugeBuilder(HTTP_SERVER_AVERAGE_RESPONSE_BYTES)
+            .histogramBuilder(HTTP_SERVER_DURATION_MILLIS)
             .ofLongs()
-            .buildWithCallback(measurement -> recordAverage(measurement, responseBytes));
-    final Map<Attributes, Long> requests = new ConcurrentHashMap<>();
-    final AutoCloseable requestsCounter =
-        meter
-            .counterBuilder(HTTP_SERVER_REQUESTS)
-            .buildWithCallback(measurement -> recordValue(measurement, requests));
+            .setUnit("ms")
+            .setExplicitBucketBoundariesAdvice(DURATION_BUCKETS)
+            .build();
+    final Map<Attributes, SlowestSamples> exemplars = new ConcurrentHashMap<>();
+    final LongCounter requestBytes =
+        meter.counterBuilder(HTTP_SERVER_REQUEST_BYTES).setUnit("By").build();
+    final LongCounter responseBytes =
+        meter.counterBuilder(HTTP_SERVER_RESPONSE_BYTES).setUnit("By").build();
+    final LongCounter requests = meter.counterBuilder(HTTP_SERVER_REQUESTS).build();
+    final Map<Attributes, AverageCounter> averageDurationMillis = new ConcurrentHashMap<>();
+    final Map<Attributes, AverageCounter> averageRequestBytes = new ConcurrentHashMap<>();
+    final Map<Attributes, AverageCounter> averageResponseBytes = new ConcurrentHashMap<>();
+    final List<AutoCloseable> averageGauges =
+        List.of(
+            averageGauge(meter, HTTP_SERVER_AVERAGE_DURATION_MILLIS, averageDurationMillis),
+            averageGauge(meter, HTTP_SERVER_AVERAGE_REQUEST_BYTES, averageRequestBytes),
+            averageGauge(meter, HTTP_SERVER_AVERAGE_RESPONSE_BYTES, averageResponseBytes));
 
     return lambdaSubscriber(
         metrics -> {
+          final long start = nanoTime();
+          final Dimensions d =
+              new Dimensions(
+                  ofNullable(pathDimensions.apply(metrics.path())).orElseGet(Attributes::empty),
+                  metrics.method(),
+                  metrics.statusCode());
           final Attributes attributes =
-              addDimensions(pathDimensions.apply(metrics.path()), metrics, instance);
-
-          with(
-              () -> durationMillis.computeIfAbsent(attributes, k -> new AverageCounter()),
-              c -> c.add(metrics.timeTaken().toMillis()));
-          with(
-              () -> requestBytes.computeIfAbsent(attributes, k -> new AverageCounter()),
-              c -> c.add(metrics.requestBytes()));
-          with(
-              () -> responseBytes.computeIfAbsent(attributes, k -> new AverageCounter()),
-              c -> c.add(metrics.responseBytes()));
-          requests.put(attributes, requests.computeIfAbsent(attributes, k -> 0L) + 1);
+              ofNullable(cached(dimensions, d, k -> addDimensions(k, instance)))
+                  .orElseGet(() -> addDimensions(d, instance));
+          final long millis = metrics.timeTaken().toMillis();
+          final TraceIds ids = traceIds.apply(metrics);
+
+          if (offerExemplar(exemplars, attributes, ids, millis)) {
+            durationMillis.record(millis, attributes, exemplarContext(ids));
+          } else {
+            durationMillis.record(millis, attributes);
+          }
+
+          requestBytes.add(metrics.requestBytes(), attributes);
+          responseBytes.add(metrics.responseBytes(), attributes);
+          requests.add(1, attributes);
+          recordAverage(averageDurationMillis, attributes, millis);
+          recordAverage(averageRequestBytes, attributes, metrics.requestBytes());
+          recordAverage(averageResponseBytes, attributes, metrics.responseBytes());
+          SelfTelemetry.callback(nanoTime() - start);
         },
-        () -> {
-          durationMillisCounter.close();
-          requestBytesCounter.close();
-          responseBytesCounter.close();
-          requestsCounter.close();
-        });
+        () -> close(averageGauges),
+        e -> close(averageGauges));
   }
 
+  private record Dimensions(Attributes attributes, String method, int statusCode) {}
+
+  /** Only for the deprecated average gauges. */
   private static class AverageCounter {
     private long requests;
     private long value;
 
-    private AverageCounter add(final long value) {
+    private synchronized void add(final long value) {
       this.value += value;
       requests += 1;
-
-      return this;
     }
 
-    private long consumeAverage() {
+    private synchronized long consumeAverage() {
       final long result = value / max(requests, 1);
 
       value = 0L;
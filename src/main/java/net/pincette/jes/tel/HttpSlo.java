@@ -0,0 +1,251 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.lang.Math.floorMod;
+import static java.lang.System.currentTimeMillis;
+import static java.util.Optional.ofNullable;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.rs.LambdaSubscriber.lambdaSubscriber;
+
+import com.typesafe.config.Config;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.ObservableDoubleMeasurement;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.function.Function;
+import net.pincette.netty.http.Metrics;
+
+/**
+ * Tracks latency and availability objectives per route. A request is good when its status code is
+ * below 500 and it doesn't take longer than the threshold of its route. For each route the good
+ * and bad requests are counted per second in a ring of primitive arrays that covers the largest
+ * window. Running sums per window are updated as the ring rotates, so a collection doesn't depend
+ * on the size of the windows. The gauge <code>http.server.slo.burn_rate</code> is derived from
+ * them for the windows <code>5m</code>, <code>1h</code> and <code>6h</code>, which are in the
+ * dimension <code>slo.window</code>. The other dimension is <code>http.route</code>. A burn rate
+ * of 1 means the error budget is consumed exactly at the end of the SLO period.
+ *
+ * <p>The configuration has the following entries:
+ *
+ * <dl>
+ *   <dt>threshold
+ *   <dd>The default latency threshold for routes that are not listed.
+ *   <dt>target
+ *   <dd>The default availability target for routes that are not listed, e.g. 0.999.
+ *   <dt>routes
+ *   <dd>A list of objects with the fields <code>route</code>, <code>threshold</code> and <code>
+ *       target</code>.
+ *   <dt>maxRoutes
+ *   <dd>The maximum number of tracked routes. When it is reached, routes that are not listed are
+ *       ignored. The listed routes are always tracked. The default is 100.
+ * </dl>
+ *
+ * <p>Routes that are not listed are only tracked when both defaults are present. Each tracked route
+ * takes about 350KB, because it has a slot for every second of the largest window. So the default
+ * maximum number of routes corresponds to about 35MB.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class HttpSlo {
+  private static final int DEFAULT_MAX_ROUTES = 100;
+  private static final AttributeKey<String> HTTP_ROUTE = stringKey("http.route");
+  private static final String HTTP_SERVER_SLO_BURN_RATE = "http.server.slo.burn_rate";
+  private static final String MAX_ROUTES = "maxRoutes";
+  private static final String ROUTE = "route";
+  private static final String ROUTES = "routes";
+  private static final AttributeKey<String> SLO_WINDOW = stringKey("slo.window");
+  private static final String TARGET = "target";
+  private static final String THRESHOLD = "threshold";
+  private static final int[] WINDOWS = {300, 3600, 21600};
+  private static final String[] WINDOW_NAMES = {"5m", "1h", "6h"};
+  private static final int SLOTS = WINDOWS[WINDOWS.length - 1];
+
+  private final Objective defaultObjective;
+  private final int maxRoutes;
+  private final Function<String, String> route;
+  private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+  private HttpSlo(final Config config, final Function<String, String> route) {
+    this.route = route;
+    defaultObjective =
+        configValue(config::getDuration, THRESHOLD)
+            .flatMap(t -> configValue(config::getDouble, TARGET).map(a -> new Objective(t, a)))
+            .orElse(null);
+    maxRoutes = configValue(config::getInt, MAX_ROUTES).orElse(DEFAULT_MAX_ROUTES);
+    configValue(config::getConfigList, ROUTES)
+        .ifPresent(
+            routes ->
+                routes.forEach(
+                    c ->
+                        rings.put(
+                            c.getString(ROUTE),
+                            new Ring(
+                                c.getString(ROUTE),
+                                new Objective(c.getDuration(THRESHOLD), c.getDouble(TARGET))))));
+  }
+
+  private static long now() {
+    return currentTimeMillis() / 1000;
+  }
+
+  /**
+   * Creates a subscriber that tracks the objectives. The gauge is registered with <code>meter
+   * </code> and it is removed again when the stream completes or fails.
+   *
+   * @param meter the meter from which the gauge is created.
+   * @param config the objectives.
+   * @param route the function that maps a request path to its route. It may return <code>null
+   *     </code>, in which case the request is ignored. The number of different routes should be
+   *     bounded.
+   * @return The subscriber.
+   */
+  public static Subscriber<Metrics> subscriber(
+      final Meter meter, final Config config, final Function<String, String> route) {
+    final HttpSlo slo = new HttpSlo(config, route);
+    final AutoCloseable gauge =
+        meter
+            .gaugeBuilder(HTTP_SERVER_SLO_BURN_RATE)
+            .buildWithCallback(
+                measurement -> {
+                  final long now = now();
+
+                  slo.rings.values().forEach(r -> r.burnRates(now, measurement));
+                });
+
+    return lambdaSubscriber(slo::accept, gauge::close, e -> gauge.close());
+  }
+
+  private void accept(final Metrics metrics) {
+    ofNullable(route.apply(metrics.path()))
+        .map(this::ring)
+        .ifPresent(
+            r ->
+                r.add(
+                    now(),
+                    metrics.statusCode() < 500
+                        && metrics.timeTaken().toMillis() <= r.objective.thresholdMillis));
+  }
+
+  private Ring ring(final String route) {
+    final Ring ring = rings.get(route);
+
+    return ring != null || defaultObjective == null || rings.size() >= maxRoutes
+        ? ring
+        : rings.computeIfAbsent(route, r -> new Ring(r, defaultObjective));
+  }
+
+  private static class Objective {
+    private final double errorBudget;
+    private final long thresholdMillis;
+
+    private Objective(final Duration threshold, final double target) {
+      if (target <= 0 || target >= 1) {
+        throw new IllegalArgumentException("The target should be between 0 and 1 exclusively");
+      }
+
+      this.errorBudget = 1 - target;
+      this.thresholdMillis = threshold.toMillis();
+    }
+  }
+
+  private static class Ring {
+    private final Attributes[] attributes = new Attributes[WINDOWS.length];
+    private final int[] bad = new int[SLOTS];
+    private final long[] badSums = new long[WINDOWS.length];
+    private final int[] good = new int[SLOTS];
+    private final long[] goodSums = new long[WINDOWS.length];
+    private final Objective objective;
+    private final long[] seconds = new long[SLOTS];
+    private long head;
+
+    private Ring(final String route, final Objective objective) {
+      this.objective = objective;
+
+      for (int i = 0; i < WINDOWS.length; ++i) {
+        attributes[i] = Attributes.of(HTTP_ROUTE, route, SLO_WINDOW, WINDOW_NAMES[i]);
+      }
+    }
+
+    private synchronized void add(final long second, final boolean isGood) {
+      advance(second);
+
+      final long age = head - second;
+      final int slot = floorMod(second, SLOTS);
+
+      if (age >= SLOTS || seconds[slot] != second) {
+        return; // Too old or the clock went back.
+      }
+
+      if (isGood) {
+        ++good[slot];
+      } else {
+        ++bad[slot];
+      }
+
+      for (int i = 0; i < WINDOWS.length; ++i) {
+        if (age < WINDOWS[i]) {
+          if (isGood) {
+            ++goodSums[i];
+          } else {
+            ++badSums[i];
+          }
+        }
+      }
+    }
+
+    /**
+     * Moves the head to <code>second</code>. Each second that is entered removes the second that
+     * leaves a window from the sum of that window, which is O(windows) per second.
+     */
+    private void advance(final long second) {
+      if (second <= head) {
+        return;
+      }
+
+      if (second - head > SLOTS) {
+        Arrays.fill(badSums, 0);
+        Arrays.fill(goodSums, 0);
+        head = second - 1;
+      }
+
+      while (head < second) {
+        final long next = ++head;
+
+        for (int i = 0; i < WINDOWS.length; ++i) {
+          final long leaving = next - WINDOWS[i];
+          final int slot = floorMod(leaving, SLOTS);
+
+          if (seconds[slot] == leaving) {
+            badSums[i] -= bad[slot];
+            goodSums[i] -= good[slot];
+          }
+        }
+
+        final int slot = floorMod(next, SLOTS);
+
+        seconds[slot] = next;
+        bad[slot] = 0;
+        good[slot] = 0;
+      }
+    }
+
+    private synchronized void burnRates(
+        final long now, final ObservableDoubleMeasurement measurement) {
+      advance(now);
+
+      for (int i = 0; i < WINDOWS.length; ++i) {
+        final long total = badSums[i] + goodSums[i];
+
+        measurement.record(
+            total == 0 ? 0.0 : ((double) badSums[i] / total) / objective.errorBudget,
+            attributes[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package net.pincette.jes.tel;
+
+import static java.nio.ByteBuffer.allocateDirect;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.deleteIfExists;
+import static java.nio.file.Files.exists;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.util.Util.tryToDoSilent;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import com.typesafe.config.Config;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.logs.export.LogRecordExporter;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.export.AggregationTemporalitySelector;
+import io.opentelemetry.sdk.metrics.export.MetricExporter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import net.pincette.jes.tel.OtlpMarshalers.JsonWriter;
+
+/**
+ * Writes OTLP-JSON lines, where each line is one export request. The requests are serialized into
+ * a large direct buffer, which is written to the channel when it is full and at the end of each
+ * export. So there is at most one system call per batch instead of one per record. When a write
+ * fails, the file is truncated to where the request started, so it doesn't end with a partial line.
+ * This is not possible for <code>stdout</code>.
+ *
+ * <p>The file variant is configured with the following entries:
+ *
+ * <dl>
+ *   <dt>directory
+ *   <dd>The directory where the files <code>logs.jsonl</code> and <code>metrics.jsonl</code> are
+ *       written. It is mandatory.
+ *   <dt>maxSize
+ *   <dd>The size at which a file is rotated. The default is 100MB.
+ *   <dt>maxFiles
+ *   <dd>The number of rotated files that are kept, which get the suffixes <code>.1</code>, <code>
+ *       .2</code>, etc. The default is 5.
+ * </dl>
+ *
+ * @param <T> the exported data type.
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+final class JsonLinesExporter<T> {
+  private static final int BUFFER_SIZE = 1024 * 1024;
+  private static final int DEFAULT_MAX_FILES = 5;
+  private static final long DEFAULT_MAX_SIZE = 100L * 1024 * 1024;
+  private static final String DIRECTORY = "directory";
+  private static final String EXTENSION = ".jsonl";
+  private static final String MAX_FILES = "maxFiles";
+  private static final String MAX_SIZE = "maxSize";
+
+  private final ChannelStream out = new ChannelStream();
+  private final Path file;
+  private final int maxFiles;
+  private final long maxSize;
+  private final JsonWriter<T> writer;
+  private FileChannel channel;
+
+  private JsonLinesExporter(
+      final JsonWriter<T> writer,
+      final Path file,
+      final long maxSize,
+      final int maxFiles) {
+    this.file = file;
+    this.maxFiles = maxFiles;
+    this.maxSize = maxSize;
+    this.writer = writer;
+    channel = tryToGetRethrow(this::open);
+  }
+
+  private static <T> JsonLinesExporter<T> create(
+      final JsonWriter<T> writer, final Config config, final String kind) {
+    return config == null
+        ? new JsonLinesExporter<>(writer, null, Long.MAX_VALUE, 0)
+        : new JsonLinesExporter<>(
+            writer,
+            tryToGetRethrow(() -> createDirectories(Path.of(config.getString(DIRECTORY))))
+                .resolve(kind + EXTENSION),
+            configValue(config::getBytes, MAX_SIZE).orElse(DEFAULT_MAX_SIZE),
+            configValue(config::getInt, MAX_FILES).orElse(DEFAULT_MAX_FILES));
+  }
+
+  /**
+   * Creates a log record exporter.
+   *
+   * @param config the file configuration. If it is <code>null</code> the lines are written to
+   *     <code>stdout</code>.
+   * @return The exporter.
+   */
+  static LogRecordExporter logRecordExporter(final Config config) {
+    final JsonLinesExporter<LogRecordData> exporter =
+        create(OtlpMarshalers::logsJson, config, "logs");
+
+    return new LogRecordExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<LogRecordData> logs) {
+        return exporter.export(logs);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return exporter.flush();
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return exporter.shutdown();
+      }
+    };
+  }
+
+  /**
+   * Creates a metric exporter.
+   *
+   * @param config the file configuration. If it is <code>null</code> the lines are written to
+   *     <code>stdout</code>.
+   * @param temporality the temporality per instrument type.
+   * @return The exporter.
+   */
+  static MetricExporter metricExporter(
+      final Config config, final AggregationTemporalitySelector temporality) {
+    final JsonLinesExporter<MetricData> exporter =
+        create(OtlpMarshalers::metricsJson, config, "metrics");
+
+    return new MetricExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<MetricData> metrics) {
+        return exporter.export(metrics);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return exporter.flush();
+      }
+
+      @Override
+      public AggregationTemporality getAggregationTemporality(final InstrumentType type) {
+        return temporality.getAggregationTemporality(type);
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return exporter.shutdown();
+      }
+    };
+  }
+
+  private synchronized CompletableResultCode export(final Collection<T> items) {
+    if (channel == null) {
+      return CompletableResultCode.ofFailure();
+    }
+
+    long start = -1;
+
+    try {
+      start = file != null ? channel.size() : -1;
+      writer.write(items, out);
+      out.write('\n');
+      out.drain();
+      start = -1; // The request is complete.
+      rotate();
+
+      return CompletableResultCode.ofSuccess();
+    } catch (IOException e) {
+      out.clear();
+      truncate(start);
+
+      return CompletableResultCode.ofExceptionalFailure(e);
+    }
+  }
+
+  private synchronized CompletableResultCode flush() {
+    try {
+      if (channel != null && file != null) {
+        channel.force(false);
+      }
+
+      return CompletableResultCode.ofSuccess();
+    } catch (IOException e) {
+      return CompletableResultCode.ofExceptionalFailure(e);
+    }
+  }
+
+  private FileChannel open() throws IOException {
+    return file == null
+        ? new FileOutputStream(FileDescriptor.out).getChannel()
+        : FileChannel.open(file, CREATE, WRITE, APPEND);
+  }
+
+  private Path rotated(final int index) {
+    return file.resolveSibling(file.getFileName() + "." + index);
+  }
+
+  private void rotate() throws IOException {
+    if (file != null && channel.size() >= maxSize) {
+      channel.close();
+      deleteIfExists(rotated(maxFiles));
+
+      for (int i = maxFiles - 1; i > 0; --i) {
+        if (exists(rotated(i))) {
+          move(rotated(i), rotated(i + 1), REPLACE_EXISTING);
+        }
+      }
+
+      if (maxFiles > 0) {
+        move(file, rotated(1), REPLACE_EXISTING);
+      } else {
+        deleteIfExists(file);
+      }
+
+      channel = open();
+    }
+  }
+
+  private synchronized CompletableResultCode shutdown() {
+    try {
+      if (channel != null && file != null) {
+        channel.close();
+      }
+
+      channel = null;
+
+      return CompletableResultCode.ofSuccess();
+    } catch (IOException e) {
+      return CompletableResultCode.ofExceptionalFailure(e);
+    }
+  }
+
+  private void truncate(final long position) {
+    if (position >= 0) {
+      tryToDoSilent(() -> channel.truncate(position));
+    }
+  }
+
+  private class ChannelStream extends OutputStream {
+    private final ByteBuffer buffer = allocateDirect(BUFFER_SIZE);
+
+    private void clear() {
+      buffer.clear();
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      buffer.clear();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      int offset = off;
+      int remaining = len;
+
+      while (remaining > 0) {
+        if (!buffer.hasRemaining()) {
+          drain();
+        }
+
+        final int length = Math.min(remaining, buffer.remaining());
+
+        buffer.put(b, offset, length);
+        offset += length;
+        remaining -= length;
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.context.ContextKey.named;
+import static java.util.Optional.ofNullable;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.ContextKey;
+import io.opentelemetry.context.ImplicitContextKeyed;
+import io.opentelemetry.context.Scope;
+import java.util.Optional;
+
+/**
+ * A scoped set of log attributes and trace identifiers. It is stored in the OpenTelemetry <code>
+ * Context</code>, so it follows the thread that makes it current, also when that is a virtual
+ * thread. For hand-offs to other threads or reactive stages the context can be captured with <code>
+ * Context.current().wrap(...)</code>. The {@link OtelLogHandler} merges it into every log record it
+ * publishes, so callers don't have to rebuild the same attributes for each log call. Attributes
+ * that are given with a log call override those of the context.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class LogContext implements ImplicitContextKeyed {
+  private static final LogContext EMPTY = new LogContext(Attributes.empty(), null);
+  private static final ContextKey<LogContext> KEY = named(LogContext.class.getName());
+
+  public final Attributes attributes;
+  public final TraceIds ids;
+
+  private LogContext(final Attributes attributes, final TraceIds ids) {
+    this.attributes = attributes;
+    this.ids = ids;
+  }
+
+  /**
+   * Returns the log context of the current OpenTelemetry context or an empty one.
+   *
+   * @return The log context.
+   */
+  public static LogContext current() {
+    return fromContext(Context.current()).orElse(EMPTY);
+  }
+
+  public static Optional<LogContext> fromContext(final Context context) {
+    return ofNullable(context.get(KEY));
+  }
+
+  /**
+   * Creates a log context that extends the current one with <code>attributes</code> and makes it
+   * current. The returned scope should be closed in the same thread.
+   *
+   * @param attributes the attributes that are added.
+   * @return The scope.
+   */
+  public static Scope open(final Attributes attributes) {
+    return current().withAttributes(attributes).makeCurrent();
+  }
+
+  /**
+   * Creates a log context that extends the current one with <code>attributes</code> and the trace
+   * identifiers and makes it current. The returned scope should be closed in the same thread.
+   *
+   * @param attributes the attributes that are added.
+   * @param ids the trace identifiers.
+   * @return The scope.
+   */
+  public static Scope open(final Attributes attributes, final TraceIds ids) {
+    return current().withAttributes(attributes).withIds(ids).makeCurrent();
+  }
+
+  @Override
+  public Context storeInContext(final Context context) {
+    return context.with(KEY, this);
+  }
+
+  /**
+   * Returns a new log context where <code>attributes</code> are merged into the existing ones.
+   *
+   * @param attributes the attributes that are added. They override existing ones with the same
+   *     key.
+   * @return The new log context.
+   */
+  public LogContext withAttributes(final Attributes attributes) {
+    return attributes == null || attributes.isEmpty()
+        ? this
+        : new LogContext(
+            this.attributes.isEmpty()
+                ? attributes
+                : this.attributes.toBuilder().putAll(attributes).build(),
+            ids);
+  }
+
+  public LogContext withIds(final TraceIds ids) {
+    return new LogContext(attributes, ids);
+  }
+}
@@ -0,0 +1,152 @@
+package net.pincette.jes.tel;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.logs.export.LogRecordExporter;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.export.AggregationTemporalitySelector;
+import io.opentelemetry.sdk.metrics.export.MetricExporter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps exported log records and metrics in memory, which is meant for tests and benchmarks only.
+ * The instance that is returned by {@link #memoryExporter()} is the one that is used when <code>
+ * otlp.memory</code> is set to <code>true</code> in the configuration. Because it lives as long as
+ * the process, it keeps only the last 100000 log records and the last 100000 metrics. Older ones
+ * are removed.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class MemoryExporter {
+  private static final int MAX_ITEMS = 100000;
+  private static final MemoryExporter SHARED = new MemoryExporter();
+
+  private final Deque<LogRecordData> logs = new ArrayDeque<>();
+  private final Deque<MetricData> metrics = new ArrayDeque<>();
+
+  /**
+   * Returns the process-wide instance.
+   *
+   * @return The exporter.
+   */
+  public static MemoryExporter memoryExporter() {
+    return SHARED;
+  }
+
+  private static <T> CompletableResultCode add(final Deque<T> items, final Collection<T> added) {
+    synchronized (items) {
+      for (final T item : added) {
+        if (items.size() == MAX_ITEMS) {
+          items.removeFirst();
+        }
+
+        items.addLast(item);
+      }
+    }
+
+    return CompletableResultCode.ofSuccess();
+  }
+
+  /**
+   * Returns a log record exporter that adds the records to this object.
+   *
+   * @return The exporter.
+   */
+  public LogRecordExporter logRecordExporter() {
+    return new LogRecordExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<LogRecordData> records) {
+        return add(logs, records);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+      }
+    };
+  }
+
+  /**
+   * Returns a copy of the exported log records.
+   *
+   * @return The log records.
+   */
+  public List<LogRecordData> logs() {
+    synchronized (logs) {
+      return new ArrayList<>(logs);
+    }
+  }
+
+  /**
+   * Returns a metric exporter with cumulative temporality that adds the metrics to this object.
+   *
+   * @return The exporter.
+   */
+  public MetricExporter metricExporter() {
+    return metricExporter(AggregationTemporalitySelector.alwaysCumulative());
+  }
+
+  /**
+   * Returns a metric exporter that adds the metrics to this object.
+   *
+   * @param temporality the temporality per instrument type.
+   * @return The exporter.
+   */
+  public MetricExporter metricExporter(final AggregationTemporalitySelector temporality) {
+    return new MetricExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<MetricData> data) {
+        return add(metrics, data);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+      }
+
+      @Override
+      public AggregationTemporality getAggregationTemporality(final InstrumentType type) {
+        return temporality.getAggregationTemporality(type);
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+      }
+    };
+  }
+
+  /**
+   * Returns a copy of the exported metrics.
+   *
+   * @return The metrics.
+   */
+  public List<MetricData> metrics() {
+    synchronized (metrics) {
+      return new ArrayList<>(metrics);
+    }
+  }
+
+  /** Removes all the log records and metrics. */
+  public void reset() {
+    synchronized (logs) {
+      logs.clear();
+    }
+
+    synchronized (metrics) {
+      metrics.clear();
+    }
+  }
+}
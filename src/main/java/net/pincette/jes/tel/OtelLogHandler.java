@@ -27,9 +27,6 @@ import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.common.AttributesBuilder;
 import io.opentelemetry.api.logs.LoggerProvider;
 import io.opentelemetry.api.logs.Severity;
-import io.opentelemetry.api.trace.SpanContext;
-import io.opentelemetry.api.trace.TraceFlags;
-import io.opentelemetry.api.trace.TraceState;
 import io.opentelemetry.context.Context;
 import java.util.Optional;
 import java.util.logging.Handler;
@@ -38,7 +35,9 @@ import java.util.logging.LogRecord;
 import net.pincette.util.Cases;
 
 /**
- * Emits log records to the given <code>OpenTelemetry</code> instance.
+ * Emits log records to the given <code>OpenTelemetry</code> instance. The attributes and trace
+ * identifiers of the current {@link LogContext} are added to each record. Trace identifiers that
+ * are given explicitly with {@link OtelLogger} take precedence, but only when they are valid.
  *
  * @author Werner Donné
  */
@@ -58,15 +57,9 @@ public class OtelLogHandler extends Handler {
     this.loggerProvider = openTelemetry.getLogsBridge();
   }
 
-  private static Context addIds(final Context context, final OtelLogRecord rec) {
-    return context.with(
-        wrap(
-            SpanContext.create(
-                rec.traceId, rec.spanId, TraceFlags.getDefault(), TraceState.getDefault())));
-  }
-
-  private static Attributes attributes(final LogRecord rec) {
+  private static Attributes attributes(final LogRecord rec, final LogContext logContext) {
     return create(Attributes::builder)
+        .update(b -> b.putAll(logContext.attributes))
         .updateIf(() -> ofNullable(rec.getSourceClassName()), (b, c) -> b.put(CODE_NAMESPACE, c))
         .updateIf(() -> ofNullable(rec.getSourceMethodName()), (b, m) -> b.put(CODE_FUNCTION, m))
         .updateIf(
@@ -89,8 +82,15 @@ public class OtelLogHandler extends Handler {
         .build();
   }
 
-  private static Context context(final LogRecord rec) {
-    return rec instanceof OtelLogRecord r ? addIds(current(), r) : current();
+  private static Context context(final LogRecord rec, final LogContext logContext) {
+    final TraceIds ids =
+        rec instanceof OtelLogRecord r && r.ids != null && r.ids.isValid()
+            ? r.ids
+            : logContext.ids;
+
+    return ids != null && ids.spanContext().isValid()
+        ? current().with(wrap(ids.spanContext()))
+        : current();
   }
 
   private static String message(final LogRecord rec) {
@@ -126,6 +126,8 @@ public class OtelLogHandler extends Handler {
   @Override
   public void publish(final LogRecord rec) {
     if (!rec.getLevel().equals(OFF)) {
+      final LogContext logContext = LogContext.current();
+
       loggerProvider
           .get(rec.getLoggerName())
           .logRecordBuilder()
@@ -133,27 +135,25 @@ public class OtelLogHandler extends Handler {
           .setTimestamp(rec.getInstant())
           .setBody(ofNullable(message(rec)).orElse(""))
           .setSeverity(severity(rec.getLevel()))
-          .setContext(context(rec))
-          .setAllAttributes(attributes(rec))
+          .setContext(context(rec, logContext))
+          .setAllAttributes(attributes(rec, logContext))
           .emit();
+      SelfTelemetry.published(rec.getLevel());
     }
   }
 
   static class OtelLogRecord extends LogRecord {
     private final transient Attributes attributes;
-    private final transient String spanId;
-    private final transient String traceId;
+    private final transient TraceIds ids;
 
     OtelLogRecord(final Level level, final Attributes attributes) {
-      this(level, attributes, null, null);
+      this(level, attributes, null);
     }
 
-    OtelLogRecord(
-        final Level level, final Attributes attributes, final String traceId, final String spanId) {
+    OtelLogRecord(final Level level, final Attributes attributes, final TraceIds ids) {
       super(level, null);
       this.attributes = attributes;
-      this.spanId = spanId;
-      this.traceId = traceId;
+      this.ids = ids;
     }
   }
 }
@@ -21,6 +21,11 @@ public class OtelLogger {
     log(logger, FINE, null, message, attributes);
   }
 
+  public static void fine(
+      final Logger logger, final Supplier<String> message, final TraceIds ids) {
+    log(logger, FINE, null, message, null, ids);
+  }
+
   public static void fine(
       final Logger logger,
       final Supplier<String> message,
@@ -30,11 +35,24 @@ public class OtelLogger {
     log(logger, FINE, null, message, attributes, traceId, spanId);
   }
 
+  public static void fine(
+      final Logger logger,
+      final Supplier<String> message,
+      final Supplier<Attributes> attributes,
+      final TraceIds ids) {
+    log(logger, FINE, null, message, attributes, ids);
+  }
+
   public static void finer(
       final Logger logger, final Supplier<String> message, final Supplier<Attributes> attributes) {
     log(logger, FINER, null, message, attributes);
   }
 
+  public static void finer(
+      final Logger logger, final Supplier<String> message, final TraceIds ids) {
+    log(logger, FINER, null, message, null, ids);
+  }
+
   public static void finer(
       final Logger logger,
       final Supplier<String> message,
@@ -44,11 +62,24 @@ public class OtelLogger {
     log(logger, FINER, null, message, attributes, traceId, spanId);
   }
 
+  public static void finer(
+      final Logger logger,
+      final Supplier<String> message,
+      final Supplier<Attributes> attributes,
+      final TraceIds ids) {
+    log(logger, FINER, null, message, attributes, ids);
+  }
+
   public static void finest(
       final Logger logger, final Supplier<String> message, final Supplier<Attributes> attributes) {
     log(logger, FINEST, null, message, attributes);
   }
 
+  public static void finest(
+      final Logger logger, final Supplier<String> message, final TraceIds ids) {
+    log(logger, FINEST, null, message, null, ids);
+  }
+
   public static void finest(
       final Logger logger,
       final Supplier<String> message,
@@ -58,11 +89,24 @@ public class OtelLogger {
     log(logger, FINEST, null, message, attributes, traceId, spanId);
   }
 
+  public static void finest(
+      final Logger logger,
+      final Supplier<String> message,
+      final Supplier<Attributes> attributes,
+      final TraceIds ids) {
+    log(logger, FINEST, null, message, attributes, ids);
+  }
+
   public static void info(
       final Logger logger, final Supplier<String> message, final Supplier<Attributes> attributes) {
     log(logger, INFO, null, message, attributes);
   }
 
+  public static void info(
+      final Logger logger, final Supplier<String> message, final TraceIds ids) {
+    log(logger, INFO, null, message, null, ids);
+  }
+
   public static void info(
       final Logger logger,
       final Supplier<String> message,
@@ -72,6 +116,14 @@ public class OtelLogger {
     log(logger, INFO, null, message, attributes, traceId, spanId);
   }
 
+  public static void info(
+      final Logger logger,
+      final Supplier<String> message,
+      final Supplier<Attributes> attributes,
+      final TraceIds ids) {
+    log(logger, INFO, null, message, attributes, ids);
+  }
+
   public static void log(
       final Logger logger,
       final Level level,
@@ -80,13 +132,18 @@ public class OtelLogger {
     log(logger, level, null, message, attributes);
   }
 
+  public static void log(
+      final Logger logger, final Level level, final Supplier<String> message, final TraceIds ids) {
+    log(logger, level, null, message, null, ids);
+  }
+
   public static void log(
       final Logger logger,
       final Level level,
       final Throwable thrown,
       final Supplier<String> message,
       final Supplier<Attributes> attributes) {
-    log(logger, level, thrown, message, attributes, null, null);
+    log(logger, level, thrown, message, attributes, (TraceIds) null);
   }
 
   public static void log(
@@ -97,8 +154,25 @@ public class OtelLogger {
       final Supplier<Attributes> attributes,
       final String traceId,
       final String spanId) {
+    log(
+        logger,
+        level,
+        thrown,
+        message,
+        attributes,
+        traceId != null ? TraceIds.fromHex(traceId, spanId) : null);
+  }
+
+  public static void log(
+      final Logger logger,
+      final Level level,
+      final Throwable thrown,
+      final Supplier<String> message,
+      final Supplier<Attributes> attributes,
+      final TraceIds ids) {
     if (logger.isLoggable(level)) {
-      final OtelLogRecord rec = new OtelLogRecord(level, attributes.get(), traceId, spanId);
+      final OtelLogRecord rec =
+          new OtelLogRecord(level, attributes != null ? attributes.get() : null, ids);
 
       if (thrown != null) {
         rec.setThrown(thrown);
@@ -115,6 +189,11 @@ public class OtelLogger {
     log(logger, SEVERE, null, message, attributes);
   }
 
+  public static void severe(
+      final Logger logger, final Supplier<String> message, final TraceIds ids) {
+    log(logger, SEVERE, null, message, null, ids);
+  }
+
   public static void severe(
       final Logger logger,
       final Supplier<String> message,
@@ -124,11 +203,24 @@ public class OtelLogger {
     log(logger, SEVERE, null, message, attributes, traceId, spanId);
   }
 
+  public static void severe(
+      final Logger logger,
+      final Supplier<String> message,
+      final Supplier<Attributes> attributes,
+      final TraceIds ids) {
+    log(logger, SEVERE, null, message, attributes, ids);
+  }
+
   public static void warning(
       final Logger logger, final Supplier<String> message, final Supplier<Attributes> attributes) {
     log(logger, WARNING, null, message, attributes);
   }
 
+  public static void warning(
+      final Logger logger, final Supplier<String> message, final TraceIds ids) {
+    log(logger, WARNING, null, message, null, ids);
+  }
+
   public static void warning(
       final Logger logger,
       final Supplier<String> message,
@@ -137,4 +229,12 @@ public class OtelLogger {
       final String spanId) {
     log(logger, WARNING, null, message, attributes, traceId, spanId);
   }
+
+  public static void warning(
+      final Logger logger,
+      final Supplier<String> message,
+      final Supplier<Attributes> attributes,
+      final TraceIds ids) {
+    log(logger, WARNING, null, message, attributes, ids);
+  }
 }
@@ -2,30 +2,45 @@ package net.pincette.jes.tel;
 
 import static io.opentelemetry.api.common.Attributes.builder;
 import static java.lang.System.getProperty;
+import static java.lang.System.getenv;
+import static java.nio.file.Files.lines;
 import static java.util.Optional.ofNullable;
+import static java.util.UUID.randomUUID;
+import static java.util.stream.Collectors.toMap;
+import static java.util.regex.Pattern.compile;
 import static net.pincette.config.Util.configValue;
+import static net.pincette.jes.tel.MemoryExporter.memoryExporter;
+import static net.pincette.util.Util.tryToGetSilent;
 
 import com.typesafe.config.Config;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.api.metrics.LongCounter;
 import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.MeterProvider;
 import io.opentelemetry.exporter.otlp.http.logs.OtlpHttpLogRecordExporter;
 import io.opentelemetry.exporter.otlp.http.metrics.OtlpHttpMetricExporter;
 import io.opentelemetry.exporter.otlp.logs.OtlpGrpcLogRecordExporter;
 import io.opentelemetry.exporter.otlp.metrics.OtlpGrpcMetricExporter;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.common.InternalTelemetryVersion;
 import io.opentelemetry.sdk.logs.LogRecordProcessor;
 import io.opentelemetry.sdk.logs.SdkLoggerProvider;
 import io.opentelemetry.sdk.logs.export.BatchLogRecordProcessor;
 import io.opentelemetry.sdk.logs.export.LogRecordExporter;
 import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.SdkMeterProviderBuilder;
+import io.opentelemetry.sdk.metrics.export.AggregationTemporalitySelector;
 import io.opentelemetry.sdk.metrics.export.MetricExporter;
+import io.opentelemetry.sdk.metrics.export.MetricReader;
 import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.resources.ResourceBuilder;
+import java.net.InetAddress;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -34,6 +49,9 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.ToLongFunction;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import net.pincette.util.Cases;
 
 /**
@@ -42,18 +60,37 @@ import net.pincette.util.Cases;
  * @author Werner Donné
  */
 public class OtelUtil {
+  private static final Pattern CGROUP_CONTAINER_ID = compile("([0-9a-f]{64})(\\.scope)?$");
+  private static final Path CGROUP_FILE = Path.of("/proc/self/cgroup");
+  private static final String COMPRESSION = "compression";
+  private static final String CONTAINER_ID = "container.id";
+  private static final String DELTA = "delta";
+  private static final String FILE = "file";
   private static final String GRPC = "grpc";
+  private static final String HEADERS = "headers";
+  private static final String HOST_NAME = "host.name";
   private static final String HTTP = "http";
+  private static final String MEMORY = "memory";
+  private static final Pattern MOUNTINFO_CONTAINER_ID = compile("/containers/([0-9a-f]{64})/");
+  private static final Path MOUNTINFO_FILE = Path.of("/proc/self/mountinfo");
+  private static final String NONE = "none";
   private static final String OS_NAME = "os.name";
   private static final String OS_TYPE = "os.type";
   private static final String OS_VERSION = "os.version";
   private static final String OTLP = "otlp";
+  private static final String PROCESS_PID = "process.pid";
   private static final String PROCESS_RUNTIME_DESCRIPTION = "process.runtime.description";
   private static final String PROCESS_RUNTIME_NAME = "process.runtime.name";
   private static final String PROCESS_RUNTIME_VERSION = "process.runtime.version";
+  private static final Map<ResourceKey, Resource> RESOURCES = new ConcurrentHashMap<>();
+  private static final String SERVICE_INSTANCE_ID = "service.instance.id";
+  private static final String SERVICE_INSTANCE_ID_VALUE = randomUUID().toString();
   private static final String SERVICE_NAME = "service.name";
   private static final String SERVICE_NAMESPACE = "service.namespace";
   private static final String SERVICE_VERSION = "service.version";
+  private static final String SPOOL = "spool";
+  private static final String STDOUT = "stdout";
+  private static final String TEMPORALITY = "temporality";
 
   private OtelUtil() {}
 
@@ -77,6 +114,19 @@ public class OtelUtil {
     }
   }
 
+  /**
+   * Populates the host, process and container labels of a resource. Those are <code>host.name
+   * </code>, <code>process.pid</code>, <code>container.id</code> and <code>service.instance.id
+   * </code>. The container ID is only set when it can be found in the cgroup files of the process.
+   *
+   * @param builder the given builder.
+   * @return The updated builder.
+   * @since 1.0.8
+   */
+  public static ResourceBuilder addProcessProperties(final ResourceBuilder builder) {
+    return builder.putAll(ProcessAttributes.ATTRIBUTES);
+  }
+
   /**
    * Populates the system labels of a resource with Java system properties.
    *
@@ -104,25 +154,74 @@ public class OtelUtil {
   }
 
   /**
-   * Creates observable <code>Long</code> counters.
+   * Creates a <code>Long</code> counter. The SDK aggregates the increments per attribute set. With
+   * cumulative temporality the exported values are running totals and with delta temporality they
+   * are the totals per collection interval.
+   *
+   * @param meter the meter from which the counter is created.
+   * @param name the counter name.
+   * @param attributes the function that generates the attributes for each measurement based on the
+   *     counted data.
+   * @param increment the amount to be added to the counter for an incoming element.
+   * @return The function that captures the counted data.
+   * @param <T> the value type.
+   * @since 1.0.8
+   */
+  public static <T> Consumer<T> counter(
+      final Meter meter,
+      final String name,
+      final Function<T, Attributes> attributes,
+      final ToLongFunction<T> increment) {
+    final LongCounter counter = meter.counterBuilder(name).build();
+
+    return message -> counter.add(increment.applyAsLong(message), attributes.apply(message));
+  }
+
+  /**
+   * Creates a <code>Long</code> counter.
    *
-   * @param meter the meter from which the counters are created.
-   * @param name the observableCounter name.
+   * @param meter the meter from which the counter is created.
+   * @param name the counter name.
    * @param attributes the function that generates the attributes for each measurement based on the
    *     counted data.
-   * @param increment the amount to be added to the observableCounter for an incoming element.
-   * @param counters a set where the generated counters are put. At some point the caller should
-   *     close all the counters.
+   * @param increment the amount to be added to the counter for an incoming element.
+   * @param counters not used anymore, because the counter is synchronous and doesn't have to be
+   *     closed.
    * @return The function that captures the counted data.
    * @param <T> the value type.
+   * @deprecated Use {@link #counter(Meter, String, Function, ToLongFunction)}, because the set of
+   *     counters isn't used anymore.
    */
+  @Deprecated(since = "1.0.8")
   public static <T> Consumer<T> counter(
       final Meter meter,
       final String name,
       final Function<T, Attributes> attributes,
       final ToLongFunction<T> increment,
       final Set<AutoCloseable> counters) {
-    return observableCounter(meter, name, attributes, increment, counters, false);
+    return counter(meter, name, attributes, increment);
+  }
+
+  private static String compression(final Config config) {
+    return configValue(config::getString, COMPRESSION).orElse(NONE);
+  }
+
+  private static Optional<String> containerId() {
+    return containerId(CGROUP_FILE, CGROUP_CONTAINER_ID)
+        .or(() -> containerId(MOUNTINFO_FILE, MOUNTINFO_CONTAINER_ID));
+  }
+
+  private static Optional<String> containerId(final Path file, final Pattern pattern) {
+    return tryToGetSilent(
+            () -> {
+              try (Stream<String> l = lines(file)) {
+                return l.map(pattern::matcher)
+                    .filter(Matcher::find)
+                    .map(m -> m.group(1))
+                    .reduce((first, second) -> second);
+              }
+            })
+        .flatMap(id -> id);
   }
 
   private static boolean hasOtelHandler(final Logger logger) {
@@ -131,28 +230,88 @@ public class OtelUtil {
         .anyMatch(OtelLogHandler.class::isInstance);
   }
 
+  private static Map<String, String> headers(final Config config) {
+    return configValue(config::getConfig, HEADERS)
+        .map(
+            c ->
+                c.entrySet().stream()
+                    .collect(toMap(Map.Entry::getKey, e -> e.getValue().unwrapped().toString())))
+        .orElseGet(Map::of);
+  }
+
   private static Optional<LogRecordExporter> logRecordExporter(final Config config) {
     return Cases.<Config, LogRecordExporter>withValue(config)
         .orGet(
             c -> configValue(c::getString, GRPC),
-            endpoint -> OtlpGrpcLogRecordExporter.builder().setEndpoint(endpoint).build())
+            endpoint ->
+                OtlpGrpcLogRecordExporter.builder()
+                    .setEndpoint(endpoint)
+                    .setHeaders(() -> headers(config))
+                    .setCompression(compression(config))
+                    .build())
         .orGet(
             c -> configValue(c::getString, HTTP),
-            endpoint -> OtlpHttpLogRecordExporter.builder().setEndpoint(endpoint).build())
-        .get();
+            endpoint ->
+                spool(
+                    OtlpHttpLogRecordExporter.builder()
+                        .setEndpoint(endpoint)
+                        .setHeaders(() -> headers(config))
+                        .setCompression(compression(config))
+                        .build(),
+                    endpoint,
+                    config))
+        .orGet(c -> configValue(c::getConfig, FILE), JsonLinesExporter::logRecordExporter)
+        .orGet(
+            c -> configValue(c::getBoolean, STDOUT).filter(b -> b),
+            b -> JsonLinesExporter.logRecordExporter(null))
+        .orGet(
+            c -> configValue(c::getBoolean, MEMORY).filter(b -> b),
+            b -> memoryExporter().logRecordExporter())
+        .get()
+        .map(SelfTelemetry::logRecordExporter);
   }
 
   /**
    * Uses the paths <code>otlp.grpc</code> and <code>otlp.http</code> in the configuration to create
-   * a processor. The values should be URLs.
+   * a processor. The values should be URLs. The optional object <code>otlp.headers</code> has the
+   * headers that are sent to the endpoint, for example for authentication. The optional path <code>
+   * otlp.compression</code> can be <code>gzip</code> or <code>none</code>, which is the default.
+   * With <code>otlp.http</code> the optional path <code>otlp.spool</code> enables a persistent
+   * spool for when the endpoint is not available. Instead of an OTLP endpoint there can also be a
+   * local exporter. The path <code>otlp.file</code> writes OTLP-JSON lines to rotated files, <code>
+   * otlp.stdout = true</code> writes them to <code>stdout</code> and <code>otlp.memory = true
+   * </code> keeps the records in {@link MemoryExporter#memoryExporter()}.
    *
    * @param config the given configuration.
    * @return The log record processor.
    */
   public static Optional<LogRecordProcessor> logRecordProcessor(final Config config) {
+    return logRecordProcessor(config, MeterProvider.noop());
+  }
+
+  /**
+   * Creates the processor like {@link #logRecordProcessor(Config)}, but the batch processor reports
+   * about itself through <code>meterProvider</code>. The instrument <code>
+   * otel.sdk.processor.log.processed</code> counts the log records, with the attribute <code>
+   * error.type = queue_full</code> for the ones that were dropped. The instruments <code>
+   * otel.sdk.processor.log.queue.size</code> and <code>otel.sdk.processor.log.queue.capacity
+   * </code> show the fill of the queue.
+   *
+   * @param config the given configuration.
+   * @param meterProvider the meter provider for the instruments of the batch processor.
+   * @return The log record processor.
+   * @since 1.0.8
+   */
+  public static Optional<LogRecordProcessor> logRecordProcessor(
+      final Config config, final MeterProvider meterProvider) {
     return configValue(config::getConfig, OTLP)
         .flatMap(OtelUtil::logRecordExporter)
-        .map(e -> BatchLogRecordProcessor.builder(e).build());
+        .map(
+            e ->
+                BatchLogRecordProcessor.builder(e)
+                    .setMeterProvider(meterProvider)
+                    .setInternalTelemetryVersion(InternalTelemetryVersion.LATEST)
+                    .build());
   }
 
   private static Optional<SdkLoggerProvider> loggerProvider(
@@ -170,65 +329,110 @@ public class OtelUtil {
   }
 
   private static Optional<SdkMeterProvider> meterProvider(
-      final String namespace, final String name, final String version, final Config config) {
-    return configValue(config::getConfig, OTLP)
-        .flatMap(OtelUtil::metricExporter)
-        .map(PeriodicMetricReader::create)
+      final String namespace,
+      final String name,
+      final String version,
+      final Config config,
+      final MetricReader[] readers) {
+    final List<MetricReader> all =
+        Stream.concat(
+                configValue(config::getConfig, OTLP)
+                    .flatMap(OtelUtil::metricExporter)
+                    .map(PeriodicMetricReader::create)
+                    .stream(),
+                Arrays.stream(readers))
+            .toList();
+
+    return Optional.of(all)
+        .filter(r -> !r.isEmpty())
         .map(
-            r ->
-                SdkMeterProvider.builder()
-                    .addResource(otelResource(namespace, name, version))
-                    .registerMetricReader(r)
-                    .build());
+            r -> {
+              final SdkMeterProviderBuilder builder =
+                  SdkMeterProvider.builder().addResource(otelResource(namespace, name, version));
+
+              r.forEach(builder::registerMetricReader);
+
+              return builder.build();
+            });
   }
 
   private static Optional<MetricExporter> metricExporter(final Config config) {
+    final AggregationTemporalitySelector temporality = temporality(config);
+
     return Cases.<Config, MetricExporter>withValue(config)
         .orGet(
             c -> configValue(c::getString, GRPC),
-            endpoint -> OtlpGrpcMetricExporter.builder().setEndpoint(endpoint).build())
+            endpoint ->
+                OtlpGrpcMetricExporter.builder()
+                    .setEndpoint(endpoint)
+                    .setHeaders(() -> headers(config))
+                    .setCompression(compression(config))
+                    .setAggregationTemporalitySelector(temporality)
+                    .build())
         .orGet(
             c -> configValue(c::getString, HTTP),
-            endpoint -> OtlpHttpMetricExporter.builder().setEndpoint(endpoint).build())
-        .get();
+            endpoint ->
+                spool(
+                    OtlpHttpMetricExporter.builder()
+                        .setEndpoint(endpoint)
+                        .setHeaders(() -> headers(config))
+                        .setCompression(compression(config))
+                        .setAggregationTemporalitySelector(temporality)
+                        .build(),
+                    endpoint,
+                    config))
+        .orGet(
+            c -> configValue(c::getConfig, FILE),
+            f -> JsonLinesExporter.metricExporter(f, temporality))
+        .orGet(
+            c -> configValue(c::getBoolean, STDOUT).filter(b -> b),
+            b -> JsonLinesExporter.metricExporter(null, temporality))
+        .orGet(
+            c -> configValue(c::getBoolean, MEMORY).filter(b -> b),
+            b -> memoryExporter().metricExporter(temporality))
+        .get()
+        .map(SelfTelemetry::metricExporter);
   }
 
+  /**
+   * Creates an <code>OpenTelemetry</code> object with a meter provider, which exports the metrics
+   * as configured in the <code>otlp</code> block. It is the same as {@link #metrics(String, String,
+   * String, Config, MetricReader...)} without additional readers.
+   *
+   * @param namespace the service namespace.
+   * @param name the service name.
+   * @param version the service version.
+   * @param config the configuration that contains the <code>otlp</code> block.
+   * @return The <code>OpenTelemetry</code> object if metrics are configured.
+   */
   public static Optional<OpenTelemetry> metrics(
       final String namespace, final String name, final String version, final Config config) {
-    return meterProvider(namespace, name, version, config)
-        .map(p -> OpenTelemetrySdk.builder().setMeterProvider(p).build());
+    return metrics(namespace, name, version, config, new MetricReader[0]);
   }
 
-  private static <T> Consumer<T> observableCounter(
-      final Meter meter,
+  /**
+   * Creates an <code>OpenTelemetry</code> object with a meter provider, which exports the metrics
+   * as configured in the <code>otlp</code> block. See {@link #logRecordProcessor(Config)} for the
+   * exporters. The path <code>otlp.temporality</code> can be <code>delta</code> or <code>
+   * cumulative</code>, which is the default. With <code>delta</code> the SDK resets counters and
+   * histograms after each collection, separately for each metric reader.
+   *
+   * @param namespace the service namespace.
+   * @param name the service name.
+   * @param version the service version.
+   * @param config the configuration that contains the <code>otlp</code> block.
+   * @param readers additional metric readers, such as a {@link PrometheusReader}.
+   * @return The <code>OpenTelemetry</code> object if metrics are configured or if there are
+   *     additional readers.
+   */
+  public static Optional<OpenTelemetry> metrics(
+      final String namespace,
       final String name,
-      final Function<T, Attributes> attributes,
-      final ToLongFunction<T> increment,
-      final Set<AutoCloseable> counters,
-      final boolean reset) {
-    final Map<Attributes, Long> counts = new ConcurrentHashMap<>();
-    final Set<Attributes> created = new HashSet<>();
-
-    return message -> {
-      final Attributes a = attributes.apply(message);
-
-      counts.put(a, counts.computeIfAbsent(a, k -> 0L) + increment.applyAsLong(message));
-
-      if (!created.contains(a)) {
-        created.add(a);
-        counters.add(
-            meter
-                .counterBuilder(name)
-                .buildWithCallback(
-                    measurement -> {
-                      measurement.record(counts.get(a), a);
-
-                      if (reset) {
-                        counts.put(a, 0L);
-                      }
-                    }));
-      }
-    };
+      final String version,
+      final Config config,
+      final MetricReader... readers) {
+    return meterProvider(namespace, name, version, config, readers)
+        .map(p -> OpenTelemetrySdk.builder().setMeterProvider(p).build());
   }
 
   public static Optional<OtelLogHandler> otelLogHandler(
@@ -241,36 +445,66 @@ public class OtelUtil {
         .map(OtelLogHandler::new);
   }
 
+  private static Optional<String> hostName() {
+    return ofNullable(getenv("HOSTNAME"))
+        .or(() -> tryToGetSilent(() -> InetAddress.getLocalHost().getHostName()));
+  }
+
+  /**
+   * Returns the resource with the service labels, the system labels and the process labels. It is
+   * created only once per combination of the arguments.
+   *
+   * @param namespace the service namespace.
+   * @param name the service name.
+   * @param version the service version.
+   * @return The resource.
+   */
   public static Resource otelResource(
       final String namespace, final String name, final String version) {
-    return addSystemProperties(
-            Resource.getDefault().toBuilder()
-                .put(SERVICE_NAMESPACE, namespace)
-                .put(SERVICE_NAME, name)
-                .put(SERVICE_VERSION, version))
-        .build();
+    return RESOURCES.computeIfAbsent(
+        new ResourceKey(namespace, name, version),
+        k ->
+            addProcessProperties(
+                    addSystemProperties(
+                        Resource.getDefault().toBuilder()
+                            .put(SERVICE_NAMESPACE, namespace)
+                            .put(SERVICE_NAME, name)
+                            .put(SERVICE_VERSION, version)))
+                .build());
   }
 
   /**
-   * Creates observable <code>Long</code> counters that are reset after each fetch.
+   * Creates a <code>Long</code> counter whose values are meant to be reset after each collection.
+   *
+   * <p>This is a breaking change with respect to version 1.0.7. The counter used to be observable
+   * and was reset by this library after each collection. Now it is the same synchronous counter as
+   * the one created by {@link #counter(Meter, String, Function, ToLongFunction)}. The values are
+   * only reset when the metric exporter uses delta temporality, which is set with <code>
+   * otlp.temporality = delta</code> in the configuration. With the default cumulative temporality
+   * the exported values are running totals.
    *
-   * @param meter the meter from which the counters are created.
-   * @param name the observableCounter name.
+   * @param meter the meter from which the counter is created.
+   * @param name the counter name.
    * @param attributes the function that generates the attributes for each measurement based on the
    *     counted data.
-   * @param increment the amount to be added to the observableCounter for an incoming element.
-   * @param counters a set where the generated counters are put. At some point the caller should
-   *     close all the counters.
+   * @param increment the amount to be added to the counter for an incoming element.
+   * @param counters not used anymore, because the counter is synchronous and doesn't have to be
+   *     closed.
    * @return The function that captures the counted data.
    * @param <T> the value type.
+   * @deprecated Use {@link #counter(Meter, String, Function, ToLongFunction)} and set delta
+   *     temporality when the values should be reset after each collection. When only some
+   *     instruments should be reset, create them with a separate meter provider that has a metric
+   *     reader with delta temporality.
    */
+  @Deprecated(since = "1.0.8")
   public static <T> Consumer<T> resettingCounter(
       final Meter meter,
       final String name,
       final Function<T, Attributes> attributes,
       final ToLongFunction<T> increment,
       final Set<AutoCloseable> counters) {
-    return observableCounter(meter, name, attributes, increment, counters, true);
+    return counter(meter, name, attributes, increment);
   }
 
   /**
@@ -290,4 +524,60 @@ public class OtelUtil {
 
     return traceId.hashCode() % 10 <= (percentage - 1) / 10;
   }
+
+  /**
+   * Returns the value of the <code>service.instance.id</code> label of the resources. It is a
+   * random UUID that is generated once for the process.
+   *
+   * @return The service instance ID.
+   * @since 1.0.8
+   */
+  public static String serviceInstanceId() {
+    return SERVICE_INSTANCE_ID_VALUE;
+  }
+
+  private static LogRecordExporter spool(
+      final LogRecordExporter exporter, final String endpoint, final Config config) {
+    return configValue(config::getConfig, SPOOL)
+        .map(
+            c ->
+                SpoolingExporter.logRecordExporter(
+                    exporter, endpoint, headers(config), compression(config), c))
+        .orElse(exporter);
+  }
+
+  private static MetricExporter spool(
+      final MetricExporter exporter, final String endpoint, final Config config) {
+    return configValue(config::getConfig, SPOOL)
+        .map(
+            c ->
+                SpoolingExporter.metricExporter(
+                    exporter, endpoint, headers(config), compression(config), c))
+        .orElse(exporter);
+  }
+
+  private static AggregationTemporalitySelector temporality(final Config config) {
+    return configValue(config::getString, TEMPORALITY)
+        .filter(DELTA::equalsIgnoreCase)
+        .map(t -> AggregationTemporalitySelector.deltaPreferred())
+        .orElseGet(AggregationTemporalitySelector::alwaysCumulative);
+  }
+
+  private static class ProcessAttributes {
+    private static final Attributes ATTRIBUTES = processAttributes();
+
+    private static Attributes processAttributes() {
+      final AttributesBuilder builder =
+          builder()
+              .put(PROCESS_PID, ProcessHandle.current().pid())
+              .put(SERVICE_INSTANCE_ID, SERVICE_INSTANCE_ID_VALUE);
+
+      hostName().ifPresent(h -> builder.put(HOST_NAME, h));
+      containerId().ifPresent(c -> builder.put(CONTAINER_ID, c));
+
+      return builder.build();
+    }
+  }
+
+  private record ResourceKey(String namespace, String name, String version) {}
 }
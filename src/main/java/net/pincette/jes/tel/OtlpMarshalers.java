@@ -0,0 +1,62 @@
+package net.pincette.jes.tel;
+
+import io.opentelemetry.exporter.internal.marshal.Marshaler;
+import io.opentelemetry.exporter.internal.otlp.logs.LogsRequestMarshaler;
+import io.opentelemetry.exporter.internal.otlp.metrics.MetricsRequestMarshaler;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+
+/**
+ * The only class that uses the OTLP marshalers in <code>io.opentelemetry.exporter.internal</code>.
+ * OpenTelemetry doesn't offer a supported way to serialize OTLP requests, and those classes are
+ * not a public API. They may change in any release. This class is written against
+ * <code>opentelemetry-exporter-otlp-common</code> 1.58.0, the version of the BOM in the POM. When
+ * the BOM is upgraded, this class should be checked first.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+final class OtlpMarshalers {
+  private OtlpMarshalers() {}
+
+  static void logsJson(final Collection<LogRecordData> logs, final OutputStream out)
+      throws IOException {
+    LogsRequestMarshaler.create(logs).writeJsonTo(out);
+  }
+
+  static byte[] logsProtobuf(final Collection<LogRecordData> logs) {
+    return protobuf(LogsRequestMarshaler.create(logs));
+  }
+
+  static void metricsJson(final Collection<MetricData> metrics, final OutputStream out)
+      throws IOException {
+    MetricsRequestMarshaler.create(metrics).writeJsonTo(out);
+  }
+
+  static byte[] metricsProtobuf(final Collection<MetricData> metrics) {
+    return protobuf(MetricsRequestMarshaler.create(metrics));
+  }
+
+  private static byte[] protobuf(final Marshaler marshaler) {
+    final ByteArrayOutputStream out =
+        new ByteArrayOutputStream(marshaler.getBinarySerializedSize());
+
+    try {
+      marshaler.writeBinaryTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    return out.toByteArray();
+  }
+
+  @FunctionalInterface
+  interface JsonWriter<T> {
+    void write(Collection<T> items, OutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,192 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.util.Arrays.copyOf;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * Maps request paths to route templates such as <code>/orders/{id}/items/{item}</code>. A segment
+ * between curly braces matches any single segment. The templates are compiled into a trie of
+ * segments. Matching walks the path once, comparing regions of it with the literal segments, so it
+ * doesn't use regular expressions and doesn't allocate. Literal segments take precedence over
+ * parameters. Empty segments and the query string are ignored.
+ *
+ * <p>The object can be used as the <code>pathDimensions</code> function of {@link
+ * HttpMetrics#subscriber(io.opentelemetry.api.metrics.Meter, Function)}. It returns the same
+ * <code>Attributes</code> object with the attribute <code>http.route</code> for every path that
+ * matches a template, and <code>null</code> when there is no match. This keeps the cardinality
+ * bounded by the number of templates. With {@link #route(String)} it can also be used for {@link
+ * HttpSlo}.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class PathTemplates implements Function<String, Attributes> {
+  private static final AttributeKey<String> HTTP_ROUTE = stringKey("http.route");
+
+  private final Node root = new Node();
+
+  private PathTemplates(final Collection<String> templates) {
+    templates.forEach(this::add);
+  }
+
+  private static int end(final String path) {
+    final int query = path.indexOf('?');
+
+    return query != -1 ? query : path.length();
+  }
+
+  private static int hash(final String s, final int start, final int end) {
+    int result = 0;
+
+    for (int i = start; i < end; ++i) {
+      result = 31 * result + s.charAt(i);
+    }
+
+    return result;
+  }
+
+  private static boolean isParameter(final String segment) {
+    return segment.length() > 1 && segment.startsWith("{") && segment.endsWith("}");
+  }
+
+  private Node match(final String path) {
+    return path != null ? match(root, path, 0, end(path)) : null;
+  }
+
+  private static Node match(final Node node, final String path, final int position, final int end) {
+    int start = position;
+
+    while (start < end && path.charAt(start) == '/') {
+      ++start;
+    }
+
+    if (start == end) {
+      return node.template != null ? node : null;
+    }
+
+    int segmentEnd = start;
+
+    while (segmentEnd < end && path.charAt(segmentEnd) != '/') {
+      ++segmentEnd;
+    }
+
+    final Node literal = node.literal(path, start, segmentEnd);
+
+    if (literal != null) {
+      final Node result = match(literal, path, segmentEnd, end);
+
+      if (result != null) {
+        return result;
+      }
+    }
+
+    return node.parameter != null ? match(node.parameter, path, segmentEnd, end) : null;
+  }
+
+  /**
+   * Compiles the templates.
+   *
+   * @param templates the route templates.
+   * @return The matcher.
+   */
+  public static PathTemplates pathTemplates(final Collection<String> templates) {
+    return new PathTemplates(templates);
+  }
+
+  private void add(final String template) {
+    Node node = root;
+
+    for (final String segment : template.split("/")) {
+      if (!segment.isEmpty()) {
+        node = isParameter(segment) ? node.parameter() : node.literal(segment);
+      }
+    }
+
+    if (node.template == null) {
+      node.template = template;
+      node.attributes = Attributes.of(HTTP_ROUTE, template);
+    }
+  }
+
+  /**
+   * Returns the <code>http.route</code> attribute of the template that matches the path.
+   *
+   * @param path the request path, which may include a query string. It may be <code>null</code>.
+   * @return The cached attributes or <code>null</code> if no template matches.
+   */
+  @Override
+  public Attributes apply(final String path) {
+    final Node node = match(path);
+
+    return node != null ? node.attributes : null;
+  }
+
+  /**
+   * Returns the template that matches the path.
+   *
+   * @param path the request path, which may include a query string. It may be <code>null</code>.
+   * @return The template or <code>null</code> if no template matches.
+   */
+  public String route(final String path) {
+    final Node node = match(path);
+
+    return node != null ? node.template : null;
+  }
+
+  private static class Node {
+    private Attributes attributes;
+    private Node[] children = new Node[0];
+    private int[] hashes = new int[0];
+    private String[] literals = new String[0];
+    private Node parameter;
+    private String template;
+
+    private Node literal(final String segment) {
+      final Node found = literal(segment, 0, segment.length());
+
+      if (found != null) {
+        return found;
+      }
+
+      final int size = literals.length;
+      final Node child = new Node();
+
+      children = copyOf(children, size + 1);
+      hashes = copyOf(hashes, size + 1);
+      literals = copyOf(literals, size + 1);
+      children[size] = child;
+      hashes[size] = segment.hashCode();
+      literals[size] = segment;
+
+      return child;
+    }
+
+    private Node literal(final String path, final int start, final int end) {
+      final int hash = hash(path, start, end);
+      final int length = end - start;
+
+      for (int i = 0; i < literals.length; ++i) {
+        if (hashes[i] == hash
+            && literals[i].length() == length
+            && path.regionMatches(start, literals[i], 0, length)) {
+          return children[i];
+        }
+      }
+
+      return null;
+    }
+
+    private Node parameter() {
+      if (parameter == null) {
+        parameter = new Node();
+      }
+
+      return parameter;
+    }
+  }
+}
@@ -0,0 +1,642 @@
+package net.pincette.jes.tel;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCEPT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.DoublePointData;
+import io.opentelemetry.sdk.metrics.data.HistogramPointData;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.export.CollectionRegistration;
+import io.opentelemetry.sdk.metrics.export.MetricReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.rs.Source;
+
+/**
+ * A metric reader that collects the metrics when it is scraped and serializes them in the
+ * Prometheus text exposition format. The text is written as bytes directly from the collected
+ * <code>MetricData</code> into a buffer that is reused for every scrape. The same goes for the
+ * gzip-compressed version. So a scrape only allocates the response buffer.
+ *
+ * <p>Register the reader with {@link OtelUtil#metrics(String, String, String,
+ * com.typesafe.config.Config, MetricReader...)} and wrap the request handler of the HTTP server
+ * with {@link #handler(String, RequestHandler)}. Because Prometheus expects cumulative values, the
+ * reader always asks for cumulative temporality, independently of other readers. Sums become
+ * counters when they are monotonic and gauges otherwise. Exponential histograms and summaries are
+ * skipped. The resource attributes are exposed through the <code>target_info</code> metric.
+ *
+ * <p>Metrics with the same name, which can come from different instrumentation scopes, are written
+ * as one family with one <code>TYPE</code> line. Metrics of a family that have another type than
+ * the first one are skipped. The samples have the label <code>otel_scope_name</code>, so the series
+ * of different scopes don't collide. Attributes with the names <code>le</code> or <code>
+ * otel_scope_name</code> get the prefix <code>_</code>, so they can't collide with the labels of
+ * the reader. The collection and serialization run on a thread of the
+ * reader, so they don't block the event loop of the HTTP server.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class PrometheusReader implements MetricReader {
+  private static final String BUCKET = "_bucket";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String CONTENT_TYPE_VALUE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final String COUNT = "_count";
+  private static final String COUNTER = "counter";
+  private static final String GAUGE = "gauge";
+  private static final String GZIP = "gzip";
+  private static final byte[] GZIP_HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+  private static final String HISTOGRAM = "histogram";
+  private static final byte[] INF = "+Inf".getBytes(US_ASCII);
+  private static final byte[] LE = "le".getBytes(US_ASCII);
+  private static final byte[] NAN = "NaN".getBytes(US_ASCII);
+  private static final byte[] NEGATIVE_INF = "-Inf".getBytes(US_ASCII);
+  private static final byte[] OTEL_SCOPE_NAME = "otel_scope_name".getBytes(US_ASCII);
+  private static final String Q = "q=";
+  private static final String SUM = "_sum";
+  private static final String TARGET_INFO = "target_info";
+  private static final String TOTAL = "_total";
+  private static final byte[] TYPE = "# TYPE ".getBytes(US_ASCII);
+
+  private final Buffer compressed = new Buffer();
+  private final CRC32 crc = new CRC32();
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final ExecutorService executor =
+      newSingleThreadExecutor(Thread.ofPlatform().daemon().name("prometheus-scrape").factory());
+  private final Map<String, List<MetricData>> families = new LinkedHashMap<>();
+  private final Map<String, String> familyNames = new HashMap<>();
+  private final Map<String, byte[]> labelNames = new HashMap<>();
+  private final Map<String, byte[]> metricNames = new HashMap<>();
+  private final Buffer text = new Buffer();
+  private volatile CollectionRegistration registration;
+  private String scope;
+
+  private PrometheusReader() {}
+
+  /**
+   * Checks if the <code>Accept-Encoding</code> header accepts gzip, which is not the case when its
+   * quality value is zero.
+   */
+  private static boolean acceptsGzip(final String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+
+    for (final String coding : acceptEncoding.split(",")) {
+      final String[] parts = coding.split(";");
+
+      if (parts[0].trim().equalsIgnoreCase(GZIP)) {
+        return quality(parts) > 0;
+      }
+    }
+
+    return false;
+  }
+
+  private static CompletionStage<Publisher<ByteBuf>> empty(
+      final HttpResponse response, final HttpResponseStatus status) {
+    response.setStatus(status);
+
+    return completedFuture(Source.of(Unpooled.EMPTY_BUFFER));
+  }
+
+  private static boolean isPath(final String uri, final String path) {
+    return uri.startsWith(path)
+        && (uri.length() == path.length() || uri.charAt(path.length()) == '?');
+  }
+
+  /**
+   * Creates a reader that isn't registered yet.
+   *
+   * @return The reader.
+   */
+  public static PrometheusReader prometheusReader() {
+    return new PrometheusReader();
+  }
+
+  private static double quality(final String[] parts) {
+    for (int i = 1; i < parts.length; ++i) {
+      final String parameter = parts[i].trim();
+
+      if (parameter.startsWith(Q)) {
+        return tryToGetSilent(() -> Double.parseDouble(parameter.substring(Q.length())))
+            .orElse(0.0);
+      }
+    }
+
+    return 1.0;
+  }
+
+  /** Avoids duplicate label names for attributes that have the name of a label of the reader. */
+  private static byte[] reserved(final byte[] name) {
+    if (!Arrays.equals(name, LE) && !Arrays.equals(name, OTEL_SCOPE_NAME)) {
+      return name;
+    }
+
+    final byte[] result = new byte[name.length + 1];
+
+    result[0] = '_';
+    System.arraycopy(name, 0, result, 1, name.length);
+
+    return result;
+  }
+
+  private static byte[] sanitize(final String name, final boolean colon) {
+    final byte[] result = new byte[name.length()];
+
+    for (int i = 0; i < result.length; ++i) {
+      final char c = name.charAt(i);
+
+      result[i] =
+          (byte)
+              ((c >= 'a' && c <= 'z')
+                      || (c >= 'A' && c <= 'Z')
+                      || c == '_'
+                      || (colon && c == ':')
+                      || (i > 0 && c >= '0' && c <= '9')
+                  ? c
+                  : '_');
+    }
+
+    return result;
+  }
+
+  private static String suffix(final String type) {
+    return type.equals(COUNTER) ? TOTAL : "";
+  }
+
+  /**
+   * Returns the Prometheus type of the metric.
+   *
+   * @param metric the metric.
+   * @return The type or <code>null</code> if the metric can't be expressed in the text format.
+   */
+  private static String type(final MetricData metric) {
+    return switch (metric.getType()) {
+      case LONG_GAUGE, DOUBLE_GAUGE -> GAUGE;
+      case LONG_SUM -> metric.getLongSumData().isMonotonic() ? COUNTER : GAUGE;
+      case DOUBLE_SUM -> metric.getDoubleSumData().isMonotonic() ? COUNTER : GAUGE;
+      case HISTOGRAM -> HISTOGRAM;
+      default -> null;
+    };
+  }
+
+  private void compress() {
+    compressed.reset();
+    compressed.write(GZIP_HEADER);
+    deflater.reset();
+    deflater.setInput(text.bytes, 0, text.size);
+    deflater.finish();
+
+    while (!deflater.finished()) {
+      compressed.ensure(BUFFER_SIZE);
+      compressed.size +=
+          deflater.deflate(
+              compressed.bytes, compressed.size, compressed.bytes.length - compressed.size);
+    }
+
+    crc.reset();
+    crc.update(text.bytes, 0, text.size);
+    compressed.writeIntLittleEndian((int) crc.getValue());
+    compressed.writeIntLittleEndian(text.size);
+  }
+
+  private String familyName(final String name) {
+    return familyNames.computeIfAbsent(name, n -> new String(metricName(n), US_ASCII));
+  }
+
+  @Override
+  public CompletableResultCode forceFlush() {
+    return CompletableResultCode.ofSuccess();
+  }
+
+  @Override
+  public AggregationTemporality getAggregationTemporality(final InstrumentType instrumentType) {
+    return AggregationTemporality.CUMULATIVE;
+  }
+
+  /**
+   * Returns a request handler that serves the scrape endpoint on <code>path</code> and delegates
+   * all other requests to <code>next</code>. The response is gzip-compressed when the client
+   * accepts it.
+   *
+   * @param path the path of the scrape endpoint, e.g. <code>/metrics</code>.
+   * @param next the request handler of the application.
+   * @return The wrapping request handler.
+   */
+  public RequestHandler handler(final String path, final RequestHandler next) {
+    return (request, requestBody, response) ->
+        isPath(request.uri(), path)
+            ? respond(request, response)
+            : next.apply(request, requestBody, response);
+  }
+
+  private byte[] labelName(final String name) {
+    return labelNames.computeIfAbsent(name, n -> reserved(sanitize(n, false)));
+  }
+
+  private byte[] metricName(final String name) {
+    return metricNames.computeIfAbsent(name, n -> sanitize(n, true));
+  }
+
+  @Override
+  public void register(final CollectionRegistration registration) {
+    this.registration = registration;
+  }
+
+  private CompletionStage<Publisher<ByteBuf>> respond(
+      final HttpRequest request, final HttpResponse response) {
+    if (!GET.equals(request.method())) {
+      return empty(response, METHOD_NOT_ALLOWED);
+    }
+
+    if (registration == null) {
+      return empty(response, SERVICE_UNAVAILABLE);
+    }
+
+    final boolean gzip = acceptsGzip(request.headers().get(ACCEPT_ENCODING));
+    final CompletionStage<Publisher<ByteBuf>> result;
+
+    try {
+      result = supplyAsync(() -> Source.of(scrape(gzip)), executor);
+    } catch (RejectedExecutionException e) {
+      return empty(response, SERVICE_UNAVAILABLE); // The reader has been shut down.
+    }
+
+    response.setStatus(OK);
+    response.headers().set(CONTENT_TYPE, CONTENT_TYPE_VALUE);
+
+    if (gzip) {
+      response.headers().set(CONTENT_ENCODING, GZIP);
+    }
+
+    return result;
+  }
+
+  /**
+   * Collects the metrics and serializes them.
+   *
+   * @param gzip whether the result should be gzip-compressed.
+   * @return The serialized metrics, which are empty when the reader is not registered.
+   */
+  public synchronized ByteBuf scrape(final boolean gzip) {
+    final CollectionRegistration r = registration;
+
+    text.reset();
+
+    if (r != null) {
+      write(r.collectAllMetrics());
+    }
+
+    if (!gzip) {
+      return Unpooled.copiedBuffer(text.bytes, 0, text.size);
+    }
+
+    compress();
+
+    return Unpooled.copiedBuffer(compressed.bytes, 0, compressed.size);
+  }
+
+  @Override
+  public CompletableResultCode shutdown() {
+    registration = null;
+    executor.shutdown();
+
+    return CompletableResultCode.ofSuccess();
+  }
+
+  private void write(final Collection<MetricData> metrics) {
+    metrics.stream().findFirst().ifPresent(m -> writeTargetInfo(m.getResource().getAttributes()));
+    families.values().forEach(List::clear);
+    metrics.stream()
+        .filter(m -> type(m) != null)
+        .forEach(
+            m -> families.computeIfAbsent(familyName(m.getName()), k -> new ArrayList<>()).add(m));
+    families.values().stream().filter(f -> !f.isEmpty()).forEach(this::writeFamily);
+  }
+
+  private void writeFamily(final List<MetricData> family) {
+    final MetricData first = family.get(0);
+    final String type = type(first);
+
+    writeType(first.getName(), type, suffix(type));
+    family.stream().filter(m -> type.equals(type(m))).forEach(m -> writePoints(m, suffix(type)));
+  }
+
+  private void writePoints(final MetricData metric, final String suffix) {
+    final String name = metric.getName();
+
+    scope = metric.getInstrumentationScopeInfo().getName();
+
+    switch (metric.getType()) {
+      case LONG_GAUGE -> writeLongPoints(name, suffix, metric.getLongGaugeData().getPoints());
+      case DOUBLE_GAUGE -> writeDoublePoints(name, suffix, metric.getDoubleGaugeData().getPoints());
+      case LONG_SUM -> writeLongPoints(name, suffix, metric.getLongSumData().getPoints());
+      case DOUBLE_SUM -> writeDoublePoints(name, suffix, metric.getDoubleSumData().getPoints());
+      case HISTOGRAM -> writeHistogram(name, metric.getHistogramData().getPoints());
+      default -> {
+        // Not supported by the text format in a lossless way.
+      }
+    }
+  }
+
+  private void writeDoublePoints(
+      final String name, final String suffix, final Collection<DoublePointData> points) {
+    points.forEach(
+        p -> {
+          writeSample(name, suffix, p.getAttributes(), Double.NaN);
+          text.writeDouble(p.getValue());
+          text.write('\n');
+        });
+  }
+
+  private void writeHistogram(final String name, final Collection<HistogramPointData> points) {
+    points.forEach(
+        p -> {
+          final List<Double> boundaries = p.getBoundaries();
+          final List<Long> counts = p.getCounts();
+          long count = 0;
+
+          for (int i = 0; i < counts.size(); ++i) {
+            count += counts.get(i);
+            writeSample(
+                name,
+                BUCKET,
+                p.getAttributes(),
+                i < boundaries.size() ? boundaries.get(i) : Double.POSITIVE_INFINITY);
+            text.writeLong(count);
+            text.write('\n');
+          }
+
+          writeSample(name, SUM, p.getAttributes(), Double.NaN);
+          text.writeDouble(p.getSum());
+          text.write('\n');
+          writeSample(name, COUNT, p.getAttributes(), Double.NaN);
+          text.writeLong(p.getCount());
+          text.write('\n');
+        });
+  }
+
+  private void writeLabel(final byte[] name, final boolean first) {
+    if (!first) {
+      text.write(',');
+    }
+
+    text.write(name);
+    text.write('=');
+    text.write('"');
+  }
+
+  private void writeLongPoints(
+      final String name, final String suffix, final Collection<LongPointData> points) {
+    points.forEach(
+        p -> {
+          writeSample(name, suffix, p.getAttributes(), Double.NaN);
+          text.writeLong(p.getValue());
+          text.write('\n');
+        });
+  }
+
+  /**
+   * Writes the sample name and its labels, up to and including the space before the value.
+   *
+   * @param le the upper bound of a histogram bucket or <code>NaN</code> if it is not a bucket.
+   */
+  private void writeSample(
+      final String name, final String suffix, final Attributes attributes, final double le) {
+    final boolean[] first = {true};
+
+    text.write(metricName(name));
+    writeSuffix(name, suffix);
+
+    if (!attributes.isEmpty() || !Double.isNaN(le) || scope != null) {
+      text.write('{');
+
+      if (scope != null) {
+        writeLabel(OTEL_SCOPE_NAME, true);
+        writeValue(scope);
+        text.write('"');
+        first[0] = false;
+      }
+
+      attributes.forEach(
+          (k, v) -> {
+            writeLabel(labelName(k.getKey()), first[0]);
+            writeValue(v);
+            text.write('"');
+            first[0] = false;
+          });
+
+      if (!Double.isNaN(le)) {
+        writeLabel(LE, first[0]);
+        text.writeDouble(le);
+        text.write('"');
+      }
+
+      text.write('}');
+    }
+
+    text.write(' ');
+  }
+
+  private void writeSuffix(final String name, final String suffix) {
+    if (!suffix.isEmpty() && !(suffix.equals(TOTAL) && name.endsWith(TOTAL))) {
+      text.writeAscii(suffix);
+    }
+  }
+
+  private void writeTargetInfo(final Attributes attributes) {
+    scope = null;
+    writeType(TARGET_INFO, GAUGE, "");
+    writeSample(TARGET_INFO, "", attributes, Double.NaN);
+    text.write('1');
+    text.write('\n');
+  }
+
+  private void writeType(final String name, final String type, final String suffix) {
+    text.write(TYPE);
+    text.write(metricName(name));
+
+    if (suffix.equals(TOTAL)) {
+      writeSuffix(name, suffix);
+    }
+
+    text.write(' ');
+    text.writeAscii(type);
+    text.write('\n');
+  }
+
+  private void writeValue(final Object value) {
+    final String s = value instanceof String v ? v : String.valueOf(value);
+
+    for (int i = 0; i < s.length(); ++i) {
+      final char c = s.charAt(i);
+
+      switch (c) {
+        case '\\' -> {
+          text.write('\\');
+          text.write('\\');
+        }
+        case '"' -> {
+          text.write('\\');
+          text.write('"');
+        }
+        case '\n' -> {
+          text.write('\\');
+          text.write('n');
+        }
+        default -> i = text.writeUtf8(s, i);
+      }
+    }
+  }
+
+  private static class Buffer {
+    private byte[] bytes = new byte[BUFFER_SIZE];
+    private int size;
+
+    private void ensure(final int extra) {
+      if (size + extra > bytes.length) {
+        final byte[] larger = new byte[Math.max(bytes.length * 2, size + extra)];
+
+        System.arraycopy(bytes, 0, larger, 0, size);
+        bytes = larger;
+      }
+    }
+
+    private void reset() {
+      size = 0;
+    }
+
+    private void write(final int b) {
+      ensure(1);
+      bytes[size++] = (byte) b;
+    }
+
+    private void write(final byte[] b) {
+      ensure(b.length);
+      System.arraycopy(b, 0, bytes, size, b.length);
+      size += b.length;
+    }
+
+    private void writeAscii(final String s) {
+      ensure(s.length());
+
+      for (int i = 0; i < s.length(); ++i) {
+        bytes[size++] = (byte) s.charAt(i);
+      }
+    }
+
+    /** Writes integral values without going through a string. */
+    private void writeDouble(final double d) {
+      if (Double.isNaN(d)) {
+        write(NAN);
+      } else if (Double.isInfinite(d)) {
+        write(d > 0 ? INF : NEGATIVE_INF);
+      } else if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+        writeLong((long) d);
+      } else {
+        writeAscii(Double.toString(d));
+      }
+    }
+
+    private void writeIntLittleEndian(final int value) {
+      write(value & 0xff);
+      write((value >>> 8) & 0xff);
+      write((value >>> 16) & 0xff);
+      write((value >>> 24) & 0xff);
+    }
+
+    private void writeLong(final long value) {
+      if (value == Long.MIN_VALUE) {
+        writeAscii(Long.toString(value));
+        return;
+      }
+
+      final int start;
+      long v = Math.abs(value);
+
+      ensure(20);
+
+      if (value < 0) {
+        bytes[size++] = '-';
+      }
+
+      start = size;
+
+      do {
+        bytes[size++] = (byte) ('0' + v % 10);
+        v /= 10;
+      } while (v > 0);
+
+      for (int i = start, j = size - 1; i < j; ++i, --j) {
+        final byte b = bytes[i];
+
+        bytes[i] = bytes[j];
+        bytes[j] = b;
+      }
+    }
+
+    /**
+     * Writes the character at <code>index</code> in UTF-8.
+     *
+     * @return The index of the last character that was consumed, which is different from <code>
+     *     index</code> for a surrogate pair.
+     */
+    private int writeUtf8(final String s, final int index) {
+      final int c = s.codePointAt(index);
+
+      ensure(4);
+
+      if (c < 0x80) {
+        bytes[size++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[size++] = (byte) (0xc0 | (c >> 6));
+        bytes[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (c < 0x10000) {
+        bytes[size++] = (byte) (0xe0 | (c >> 12));
+        bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[size++] = (byte) (0x80 | (c & 0x3f));
+      } else {
+        bytes[size++] = (byte) (0xf0 | (c >> 18));
+        bytes[size++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+        bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+
+      return index + Character.charCount(c) - 1;
+    }
+  }
+}
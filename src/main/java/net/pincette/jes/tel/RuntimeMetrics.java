@@ -0,0 +1,375 @@
+package net.pincette.jes.tel;
+
+import static com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION;
+import static com.sun.management.GarbageCollectionNotificationInfo.from;
+import static io.opentelemetry.api.common.AttributeKey.booleanKey;
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.lang.Math.max;
+import static java.lang.management.ManagementFactory.getGarbageCollectorMXBeans;
+import static java.lang.management.ManagementFactory.getMemoryPoolMXBeans;
+import static java.lang.management.ManagementFactory.getPlatformMXBean;
+import static java.lang.management.ManagementFactory.getPlatformMXBeans;
+import static java.lang.management.ManagementFactory.getThreadMXBean;
+import static java.time.Duration.ofMillis;
+import static java.util.Optional.ofNullable;
+import static net.pincette.util.Util.tryToDoSilent;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.ObservableLongMeasurement;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * JVM runtime metrics, which help to explain changes in the HTTP metrics. The following
+ * instruments are created:
+ *
+ * <dl>
+ *   <dt><code>jvm.buffer.memory.used</code>, <code>jvm.buffer.memory.limit</code> and <code>
+ *       jvm.buffer.count</code>
+ *   <dd>The usage of the buffer pools, such as the <code>direct</code> and <code>mapped</code>
+ *       ones, which are outside of the heap. The dimension is <code>jvm.buffer.pool.name</code>.
+ *   <dt><code>jvm.gc.duration</code>
+ *   <dd>A histogram of the garbage collection actions in seconds, which is fed by the notifications
+ *       of the garbage collectors. The dimensions are <code>jvm.gc.name</code>, <code>jvm.gc.action
+ *       </code> and <code>jvm.gc.concurrent</code>. The latter is <code>true</code> for the cycles
+ *       of concurrent collectors such as ZGC and Shenandoah, which run next to the application.
+ *       Only the actions where it is <code>false</code> are pauses.
+ *   <dt><code>jvm.memory.allocated</code>
+ *   <dd>The number of bytes that were allocated by all threads. The backend derives the
+ *       allocation rate from it.
+ *   <dt><code>jvm.memory.used</code>, <code>jvm.memory.committed</code> and <code>
+ *       jvm.memory.limit</code>
+ *   <dd>The usage of the heap and non-heap memory pools. The dimensions are <code>jvm.memory.type
+ *       </code> and <code>jvm.memory.pool.name</code>.
+ *   <dt><code>jvm.thread.count</code>
+ *   <dd>The number of live platform threads. The dimension is <code>jvm.thread.daemon</code>.
+ *   <dt><code>jvm.virtual_thread.count</code>
+ *   <dd>The number of live virtual threads that were started after the instruments were created.
+ *       It is fed by the JFR events <code>jdk.VirtualThreadStart</code> and <code>
+ *       jdk.VirtualThreadEnd</code>, which are produced for every virtual thread. That is why it
+ *       has to be requested with {@link #runtimeMetrics(Meter, Duration, boolean)}.
+ *   <dt><code>jvm.virtual_thread.pinned</code>
+ *   <dd>A histogram in seconds of the periods during which a virtual thread was pinned to its
+ *       carrier thread. It is fed by the JFR event <code>jdk.VirtualThreadPinned</code>.
+ * </dl>
+ *
+ * <p>The observable instruments only read the management beans when the meter collects, so there
+ * is no extra thread for sampling.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class RuntimeMetrics {
+  private static final String CONCURRENT_CYCLE = "end of GC cycle";
+  private static final Duration DEFAULT_PINNED_THRESHOLD = ofMillis(20);
+  private static final String JVM_BUFFER_COUNT = "jvm.buffer.count";
+  private static final String JVM_BUFFER_MEMORY_LIMIT = "jvm.buffer.memory.limit";
+  private static final String JVM_BUFFER_MEMORY_USED = "jvm.buffer.memory.used";
+  private static final AttributeKey<String> JVM_BUFFER_POOL_NAME =
+      stringKey("jvm.buffer.pool.name");
+  private static final AttributeKey<String> JVM_GC_ACTION = stringKey("jvm.gc.action");
+  private static final AttributeKey<Boolean> JVM_GC_CONCURRENT = booleanKey("jvm.gc.concurrent");
+  private static final String JVM_GC_DURATION = "jvm.gc.duration";
+  private static final AttributeKey<String> JVM_GC_NAME = stringKey("jvm.gc.name");
+  private static final String JVM_MEMORY_ALLOCATED = "jvm.memory.allocated";
+  private static final String JVM_MEMORY_COMMITTED = "jvm.memory.committed";
+  private static final String JVM_MEMORY_LIMIT = "jvm.memory.limit";
+  private static final String JVM_MEMORY_POOL_NAME = "jvm.memory.pool.name";
+  private static final String JVM_MEMORY_TYPE = "jvm.memory.type";
+  private static final String JVM_MEMORY_USED = "jvm.memory.used";
+  private static final String JVM_THREAD_COUNT = "jvm.thread.count";
+  private static final AttributeKey<Boolean> JVM_THREAD_DAEMON = booleanKey("jvm.thread.daemon");
+  private static final String JVM_VIRTUAL_THREAD_COUNT = "jvm.virtual_thread.count";
+  private static final String JVM_VIRTUAL_THREAD_PINNED = "jvm.virtual_thread.pinned";
+  private static final List<Double> PAUSE_BUCKETS =
+      List.of(0.001, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1.0, 2.0, 5.0);
+  private static final String VIRTUAL_THREAD_END_EVENT = "jdk.VirtualThreadEnd";
+  private static final String VIRTUAL_THREAD_PINNED_EVENT = "jdk.VirtualThreadPinned";
+  private static final String VIRTUAL_THREAD_START_EVENT = "jdk.VirtualThreadStart";
+
+  private RuntimeMetrics() {}
+
+  private static Optional<com.sun.management.ThreadMXBean> allocationBean() {
+    return ofNullable(getPlatformMXBean(com.sun.management.ThreadMXBean.class))
+        .filter(com.sun.management.ThreadMXBean::isThreadAllocatedMemorySupported)
+        .filter(com.sun.management.ThreadMXBean::isThreadAllocatedMemoryEnabled);
+  }
+
+  private static AutoCloseable allocations(
+      final Meter meter, final com.sun.management.ThreadMXBean bean) {
+    return meter
+        .counterBuilder(JVM_MEMORY_ALLOCATED)
+        .setUnit("By")
+        .buildWithCallback(measurement -> measurement.record(bean.getTotalThreadAllocatedBytes()));
+  }
+
+  private static AutoCloseable bufferPool(
+      final Meter meter,
+      final String name,
+      final String unit,
+      final List<BufferPoolMXBean> pools,
+      final List<Attributes> attributes,
+      final ToLongFunction<BufferPoolMXBean> value) {
+    return meter
+        .upDownCounterBuilder(name)
+        .setUnit(unit)
+        .buildWithCallback(
+            measurement -> {
+              for (int i = 0; i < pools.size(); ++i) {
+                final long v = value.applyAsLong(pools.get(i));
+
+                if (v >= 0) {
+                  measurement.record(v, attributes.get(i));
+                }
+              }
+            });
+  }
+
+  private static List<AutoCloseable> bufferPools(final Meter meter) {
+    final List<BufferPoolMXBean> pools = getPlatformMXBeans(BufferPoolMXBean.class);
+    final List<Attributes> attributes =
+        pools.stream().map(p -> Attributes.of(JVM_BUFFER_POOL_NAME, p.getName())).toList();
+
+    return List.of(
+        bufferPool(
+            meter,
+            JVM_BUFFER_MEMORY_USED,
+            "By",
+            pools,
+            attributes,
+            BufferPoolMXBean::getMemoryUsed),
+        bufferPool(
+            meter,
+            JVM_BUFFER_MEMORY_LIMIT,
+            "By",
+            pools,
+            attributes,
+            BufferPoolMXBean::getTotalCapacity),
+        bufferPool(
+            meter, JVM_BUFFER_COUNT, "{buffer}", pools, attributes, BufferPoolMXBean::getCount));
+  }
+
+  private static AutoCloseable gcDurations(final Meter meter) {
+    final DoubleHistogram histogram =
+        meter
+            .histogramBuilder(JVM_GC_DURATION)
+            .setUnit("s")
+            .setExplicitBucketBoundariesAdvice(PAUSE_BUCKETS)
+            .build();
+    final Map<String, Attributes> attributes = new ConcurrentHashMap<>();
+    final NotificationListener listener =
+        (notification, handback) -> {
+          if (GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            final GarbageCollectionNotificationInfo info =
+                from((CompositeData) notification.getUserData());
+
+            histogram.record(
+                info.getGcInfo().getDuration() / 1000.0,
+                attributes.computeIfAbsent(
+                    info.getGcName() + "\u0000" + info.getGcAction(),
+                    k ->
+                        Attributes.of(
+                            JVM_GC_NAME,
+                            info.getGcName(),
+                            JVM_GC_ACTION,
+                            info.getGcAction(),
+                            JVM_GC_CONCURRENT,
+                            CONCURRENT_CYCLE.equals(info.getGcAction()))));
+          }
+        };
+    final List<NotificationEmitter> emitters =
+        getGarbageCollectorMXBeans().stream()
+            .filter(NotificationEmitter.class::isInstance)
+            .map(NotificationEmitter.class::cast)
+            .toList();
+
+    emitters.forEach(e -> e.addNotificationListener(listener, null, null));
+
+    return () ->
+        emitters.forEach(e -> tryToDoSilent(() -> e.removeNotificationListener(listener)));
+  }
+
+  private static Attributes memoryAttributes(final MemoryPoolMXBean pool) {
+    return Attributes.builder()
+        .put(JVM_MEMORY_TYPE, pool.getType() == MemoryType.HEAP ? "heap" : "non_heap")
+        .put(JVM_MEMORY_POOL_NAME, pool.getName())
+        .build();
+  }
+
+  private static AutoCloseable memoryPool(
+      final Meter meter,
+      final String name,
+      final List<MemoryPoolMXBean> pools,
+      final List<Attributes> attributes,
+      final ToLongFunction<MemoryUsage> value) {
+    return meter
+        .upDownCounterBuilder(name)
+        .setUnit("By")
+        .buildWithCallback(
+            measurement -> recordMemoryPools(measurement, pools, attributes, value));
+  }
+
+  private static List<AutoCloseable> memoryPools(final Meter meter) {
+    final List<MemoryPoolMXBean> pools = getMemoryPoolMXBeans();
+    final List<Attributes> attributes =
+        pools.stream().map(RuntimeMetrics::memoryAttributes).toList();
+
+    return List.of(
+        memoryPool(meter, JVM_MEMORY_USED, pools, attributes, MemoryUsage::getUsed),
+        memoryPool(meter, JVM_MEMORY_COMMITTED, pools, attributes, MemoryUsage::getCommitted),
+        memoryPool(meter, JVM_MEMORY_LIMIT, pools, attributes, MemoryUsage::getMax));
+  }
+
+  private static void recordMemoryPools(
+      final ObservableLongMeasurement measurement,
+      final List<MemoryPoolMXBean> pools,
+      final List<Attributes> attributes,
+      final ToLongFunction<MemoryUsage> value) {
+    for (int i = 0; i < pools.size(); ++i) {
+      final MemoryUsage usage = pools.get(i).getUsage();
+
+      if (usage != null) {
+        final long v = value.applyAsLong(usage);
+
+        if (v >= 0) {
+          measurement.record(v, attributes.get(i));
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates all the runtime instruments with a threshold of 20ms for pinned virtual threads.
+   *
+   * @param meter the meter from which the instruments are created.
+   * @return The object that should be closed to stop all the instruments.
+   */
+  public static AutoCloseable runtimeMetrics(final Meter meter) {
+    return runtimeMetrics(meter, DEFAULT_PINNED_THRESHOLD);
+  }
+
+  /**
+   * Creates all the runtime instruments, except <code>jvm.virtual_thread.count</code>.
+   *
+   * @param meter the meter from which the instruments are created.
+   * @param pinnedThreshold the minimum duration for which a pinned virtual thread is recorded. The
+   *     lower the threshold, the higher the overhead.
+   * @return The object that should be closed to stop all the instruments.
+   */
+  public static AutoCloseable runtimeMetrics(final Meter meter, final Duration pinnedThreshold) {
+    return runtimeMetrics(meter, pinnedThreshold, false);
+  }
+
+  /**
+   * Creates all the runtime instruments.
+   *
+   * @param meter the meter from which the instruments are created.
+   * @param pinnedThreshold the minimum duration for which a pinned virtual thread is recorded. The
+   *     lower the threshold, the higher the overhead.
+   * @param countVirtualThreads whether <code>jvm.virtual_thread.count</code> is created. It costs
+   *     two JFR events per virtual thread.
+   * @return The object that should be closed to stop all the instruments.
+   */
+  public static AutoCloseable runtimeMetrics(
+      final Meter meter, final Duration pinnedThreshold, final boolean countVirtualThreads) {
+    final List<AutoCloseable> closeables = new ArrayList<>();
+
+    closeables.addAll(bufferPools(meter));
+    closeables.add(gcDurations(meter));
+    closeables.addAll(memoryPools(meter));
+    closeables.add(threads(meter));
+    allocationBean().map(b -> allocations(meter, b)).ifPresent(closeables::add);
+    virtualThreads(meter, pinnedThreshold, countVirtualThreads).ifPresent(closeables::add);
+
+    return () -> closeables.forEach(c -> tryToDoSilent(c::close));
+  }
+
+  private static AutoCloseable threads(final Meter meter) {
+    final ThreadMXBean bean = getThreadMXBean();
+    final Attributes daemon = Attributes.of(JVM_THREAD_DAEMON, true);
+    final Attributes nonDaemon = Attributes.of(JVM_THREAD_DAEMON, false);
+
+    return meter
+        .upDownCounterBuilder(JVM_THREAD_COUNT)
+        .setUnit("{thread}")
+        .buildWithCallback(
+            measurement -> {
+              final int count = bean.getThreadCount();
+              final int daemonCount = bean.getDaemonThreadCount();
+
+              // The two values are read at different moments.
+              measurement.record(daemonCount, daemon);
+              measurement.record(max((long) count - daemonCount, 0), nonDaemon);
+            });
+  }
+
+  private static Optional<AutoCloseable> virtualThreads(
+      final Meter meter, final Duration pinnedThreshold, final boolean count) {
+    final DoubleHistogram pinned =
+        meter
+            .histogramBuilder(JVM_VIRTUAL_THREAD_PINNED)
+            .setUnit("s")
+            .setExplicitBucketBoundariesAdvice(PAUSE_BUCKETS)
+            .build();
+    final AtomicLong live = new AtomicLong();
+
+    return tryToGetSilent(
+            () -> {
+              final RecordingStream stream = new RecordingStream();
+
+              stream.enable(VIRTUAL_THREAD_PINNED_EVENT).withThreshold(pinnedThreshold);
+              stream.onEvent(
+                  VIRTUAL_THREAD_PINNED_EVENT,
+                  event -> pinned.record(event.getDuration().toNanos() / 1000000000.0));
+
+              if (count) {
+                stream.enable(VIRTUAL_THREAD_START_EVENT);
+                stream.enable(VIRTUAL_THREAD_END_EVENT);
+                stream.onEvent(VIRTUAL_THREAD_START_EVENT, event -> live.incrementAndGet());
+                stream.onEvent(VIRTUAL_THREAD_END_EVENT, event -> live.decrementAndGet());
+              }
+
+              stream.startAsync();
+
+              return stream;
+            })
+        .map(
+            stream -> {
+              if (!count) {
+                return stream;
+              }
+
+              // Threads that were started before the stream can end after it.
+              final AutoCloseable gauge =
+                  meter
+                      .upDownCounterBuilder(JVM_VIRTUAL_THREAD_COUNT)
+                      .setUnit("{thread}")
+                      .buildWithCallback(measurement -> measurement.record(max(live.get(), 0)));
+
+              return () -> {
+                gauge.close();
+                stream.close();
+              };
+            });
+  }
+}
@@ -0,0 +1,309 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.lang.System.nanoTime;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.logs.export.LogRecordExporter;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.export.MetricExporter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+/**
+ * Measures the cost of the library itself. The recording side uses striped counters, so it adds
+ * very little contention. The values are only turned into instruments when {@link
+ * #selfTelemetry(Meter)} is called. The following instruments are then available:
+ *
+ * <dl>
+ *   <dt><code>jes.tel.export.duration</code>
+ *   <dd>The total time in seconds spent in exports, with the dimension <code>jes.tel.signal</code>,
+ *       which is <code>logs</code> or <code>metrics</code>.
+ *   <dt><code>jes.tel.export.items</code>
+ *   <dd>The number of log records or metrics that were exported, with the dimension <code>
+ *       jes.tel.signal</code>.
+ *   <dt><code>jes.tel.export.requests</code>
+ *   <dd>The number of exports, with the dimensions <code>jes.tel.signal</code> and <code>
+ *       jes.tel.result</code>, which is <code>success</code> or <code>failure</code>. An export
+ *       that went to the spool is a failure, because it hasn't reached the endpoint.
+ *   <dt><code>jes.tel.http.callback.duration</code>
+ *   <dd>The total time in seconds spent in the callbacks of {@link HttpMetrics}.
+ *   <dt><code>jes.tel.http.callbacks</code>
+ *   <dd>The number of callbacks of {@link HttpMetrics}.
+ *   <dt><code>jes.tel.log.records</code>
+ *   <dd>The number of log records that were published by {@link OtelLogHandler}, with the dimension
+ *       <code>jes.tel.level</code>.
+ *   <dt><code>jes.tel.series</code>
+ *   <dd>The number of series per instrument in the last metric export, with the dimension <code>
+ *       jes.tel.instrument</code>. When there are several metric exporters, the largest number is
+ *       taken. The series of an exporter are forgotten when it is shut down.
+ *   <dt><code>jes.tel.spool.dropped</code>
+ *   <dd>The number of requests the spools have lost, with the dimension <code>jes.tel.signal
+ *       </code>. The spools of all exporters for a signal are added up, also the closed ones.
+ * </dl>
+ *
+ * <p>The fill of the queue of the batch log processor and the log records it has dropped are
+ * reported by the processor itself, when it is created with {@link
+ * OtelUtil#logRecordProcessor(com.typesafe.config.Config,
+ * io.opentelemetry.api.metrics.MeterProvider)}.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class SelfTelemetry {
+  private static final LongAdder CALLBACKS = new LongAdder();
+  private static final LongAdder CALLBACK_NANOS = new LongAdder();
+  private static final String FAILURE = "failure";
+  private static final String JES_TEL_EXPORT_DURATION = "jes.tel.export.duration";
+  private static final String JES_TEL_EXPORT_ITEMS = "jes.tel.export.items";
+  private static final String JES_TEL_EXPORT_REQUESTS = "jes.tel.export.requests";
+  private static final String JES_TEL_HTTP_CALLBACKS = "jes.tel.http.callbacks";
+  private static final String JES_TEL_HTTP_CALLBACK_DURATION = "jes.tel.http.callback.duration";
+  private static final AttributeKey<String> JES_TEL_INSTRUMENT = stringKey("jes.tel.instrument");
+  private static final AttributeKey<String> JES_TEL_LEVEL = stringKey("jes.tel.level");
+  private static final String JES_TEL_LOG_RECORDS = "jes.tel.log.records";
+  private static final AttributeKey<String> JES_TEL_RESULT = stringKey("jes.tel.result");
+  private static final String JES_TEL_SERIES = "jes.tel.series";
+  private static final AttributeKey<String> JES_TEL_SIGNAL = stringKey("jes.tel.signal");
+  private static final String JES_TEL_SPOOL_DROPPED = "jes.tel.spool.dropped";
+  private static final String LOGS = "logs";
+  private static final String METRICS = "metrics";
+  private static final Map<String, Exports> EXPORTS =
+      Map.of(LOGS, new Exports(LOGS), METRICS, new Exports(METRICS));
+  private static final double NANOS_PER_SECOND = 1000000000.0;
+  private static final Map<String, Published> PUBLISHED = new ConcurrentHashMap<>();
+  private static final Set<Map<String, Long>> SERIES = ConcurrentHashMap.newKeySet();
+  private static final Map<String, Spools> SPOOLS = new ConcurrentHashMap<>();
+  private static final String SUCCESS = "success";
+
+  private SelfTelemetry() {}
+
+  static void callback(final long nanos) {
+    CALLBACKS.increment();
+    CALLBACK_NANOS.add(nanos);
+  }
+
+  private static <T> CompletableResultCode export(
+      final Collection<T> items,
+      final Function<Collection<T>, CompletableResultCode> delegate,
+      final String signal) {
+    final Exports counters = EXPORTS.get(signal);
+    final long start = nanoTime();
+    final CompletableResultCode result = delegate.apply(items);
+
+    result.whenComplete(
+        () -> {
+          counters.nanos.add(nanoTime() - start);
+          counters.items.add(items.size());
+          (result.isSuccess() ? counters.success : counters.failure).increment();
+        });
+
+    return result;
+  }
+
+  static LogRecordExporter logRecordExporter(final LogRecordExporter delegate) {
+    return new LogRecordExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<LogRecordData> logs) {
+        return SelfTelemetry.export(logs, delegate::export, LOGS);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return delegate.flush();
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return delegate.shutdown();
+      }
+    };
+  }
+
+  static MetricExporter metricExporter(final MetricExporter delegate) {
+    final Map<String, Long> series = new ConcurrentHashMap<>();
+
+    SERIES.add(series);
+
+    return new MetricExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<MetricData> metrics) {
+        metrics.forEach(m -> series.put(m.getName(), (long) m.getData().getPoints().size()));
+
+        return SelfTelemetry.export(metrics, delegate::export, METRICS);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return delegate.flush();
+      }
+
+      @Override
+      public AggregationTemporality getAggregationTemporality(final InstrumentType type) {
+        return delegate.getAggregationTemporality(type);
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        SERIES.remove(series);
+
+        return delegate.shutdown();
+      }
+    };
+  }
+
+  static void published(final Level level) {
+    PUBLISHED.computeIfAbsent(level.getName(), Published::new).count.increment();
+  }
+
+  /**
+   * Creates the self-telemetry instruments. They are observed from the striped counters when the
+   * metrics are collected.
+   *
+   * @param meter the meter from which the instruments are created.
+   * @return The object with which the instruments can be removed again.
+   */
+  public static AutoCloseable selfTelemetry(final Meter meter) {
+    final List<AutoCloseable> instruments =
+        List.of(
+            meter
+                .counterBuilder(JES_TEL_EXPORT_DURATION)
+                .ofDoubles()
+                .setUnit("s")
+                .buildWithCallback(
+                    m ->
+                        EXPORTS
+                            .values()
+                            .forEach(
+                                e ->
+                                    m.record(e.nanos.sum() / NANOS_PER_SECOND, e.attributes))),
+            meter
+                .counterBuilder(JES_TEL_EXPORT_ITEMS)
+                .buildWithCallback(
+                    m -> EXPORTS.values().forEach(e -> m.record(e.items.sum(), e.attributes))),
+            meter
+                .counterBuilder(JES_TEL_EXPORT_REQUESTS)
+                .buildWithCallback(
+                    m ->
+                        EXPORTS
+                            .values()
+                            .forEach(
+                                e -> {
+                                  m.record(e.success.sum(), e.successAttributes);
+                                  m.record(e.failure.sum(), e.failureAttributes);
+                                })),
+            meter
+                .counterBuilder(JES_TEL_HTTP_CALLBACK_DURATION)
+                .ofDoubles()
+                .setUnit("s")
+                .buildWithCallback(m -> m.record(CALLBACK_NANOS.sum() / NANOS_PER_SECOND)),
+            meter
+                .counterBuilder(JES_TEL_HTTP_CALLBACKS)
+                .buildWithCallback(m -> m.record(CALLBACKS.sum())),
+            meter
+                .counterBuilder(JES_TEL_LOG_RECORDS)
+                .buildWithCallback(
+                    m -> PUBLISHED.values().forEach(p -> m.record(p.count.sum(), p.attributes))),
+            meter
+                .gaugeBuilder(JES_TEL_SERIES)
+                .ofLongs()
+                .buildWithCallback(
+                    m ->
+                        series()
+                            .forEach((k, v) -> m.record(v, Attributes.of(JES_TEL_INSTRUMENT, k)))),
+            meter
+                .counterBuilder(JES_TEL_SPOOL_DROPPED)
+                .buildWithCallback(
+                    m -> SPOOLS.values().forEach(s -> m.record(s.dropped(), s.attributes))));
+
+    return () -> {
+      for (final AutoCloseable instrument : instruments) {
+        instrument.close();
+      }
+    };
+  }
+
+  private static Map<String, Long> series() {
+    final Map<String, Long> result = new HashMap<>();
+
+    SERIES.forEach(s -> s.forEach((k, v) -> result.merge(k, v, Math::max)));
+
+    return result;
+  }
+
+  static void spool(final String signal, final Spool spool) {
+    SPOOLS.computeIfAbsent(signal, Spools::new).open.add(spool);
+  }
+
+  /**
+   * Keeps the number of records the spool has dropped, because the counter should not go down.
+   *
+   * @param signal the signal of the spool.
+   * @param spool the spool that is closed.
+   */
+  static void spoolClosed(final String signal, final Spool spool) {
+    final Spools spools = SPOOLS.get(signal);
+
+    if (spools != null) {
+      spools.close(spool);
+    }
+  }
+
+  private static class Exports {
+    private final Attributes attributes;
+    private final LongAdder failure = new LongAdder();
+    private final Attributes failureAttributes;
+    private final LongAdder items = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder success = new LongAdder();
+    private final Attributes successAttributes;
+
+    private Exports(final String signal) {
+      attributes = Attributes.of(JES_TEL_SIGNAL, signal);
+      failureAttributes = Attributes.of(JES_TEL_SIGNAL, signal, JES_TEL_RESULT, FAILURE);
+      successAttributes = Attributes.of(JES_TEL_SIGNAL, signal, JES_TEL_RESULT, SUCCESS);
+    }
+  }
+
+  private static class Published {
+    private final Attributes attributes;
+    private final LongAdder count = new LongAdder();
+
+    private Published(final String level) {
+      attributes = Attributes.of(JES_TEL_LEVEL, level);
+    }
+  }
+
+  private static class Spools {
+    private final Attributes attributes;
+    private final Set<Spool> open = ConcurrentHashMap.newKeySet();
+    private long closed;
+
+    private Spools(final String signal) {
+      attributes = Attributes.of(JES_TEL_SIGNAL, signal);
+    }
+
+    private synchronized void close(final Spool spool) {
+      if (open.remove(spool)) {
+        closed += spool.dropped();
+      }
+    }
+
+    private synchronized long dropped() {
+      return closed + open.stream().mapToLong(Spool::dropped).sum();
+    }
+  }
+}
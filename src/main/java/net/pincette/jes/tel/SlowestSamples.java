@@ -0,0 +1,66 @@
+package net.pincette.jes.tel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free selection of the largest values in an interval. It decides which
+ * observations of a series should carry an exemplar. An offer scans the slots once and does at
+ * most one compare-and-set, so the cost doesn't depend on the traffic. When two threads compete
+ * for the same slot one of the values may be lost, which is acceptable for sampling.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+final class SlowestSamples {
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  private final AtomicLong interval = new AtomicLong(-1);
+  private final long intervalNanos;
+  private final AtomicLongArray slots;
+
+  /**
+   * Creates the selection.
+   *
+   * @param size the number of values that are kept per interval.
+   * @param intervalNanos the length of an interval. The selection starts empty in each interval.
+   */
+  SlowestSamples(final int size, final long intervalNanos) {
+    this.intervalNanos = intervalNanos;
+    slots = new AtomicLongArray(size);
+
+    for (int i = 0; i < size; ++i) {
+      slots.set(i, EMPTY);
+    }
+  }
+
+  /**
+   * Offers a value.
+   *
+   * @param value the observed value.
+   * @param now the current time in nanoseconds.
+   * @return Whether the value is among the largest ones of the current interval.
+   */
+  boolean offer(final long value, final long now) {
+    final long current = now / intervalNanos;
+    final long previous = interval.get();
+
+    if (current != previous && interval.compareAndSet(previous, current)) {
+      for (int i = 0; i < slots.length(); ++i) {
+        slots.set(i, EMPTY);
+      }
+    }
+
+    int smallest = 0;
+
+    for (int i = 1; i < slots.length(); ++i) {
+      if (slots.get(i) < slots.get(smallest)) {
+        smallest = i;
+      }
+    }
+
+    final long replaced = slots.get(smallest);
+
+    return value > replaced && slots.compareAndSet(smallest, replaced, value);
+  }
+}
@@ -0,0 +1,319 @@
+package net.pincette.jes.tel;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.deleteIfExists;
+import static java.nio.file.Files.list;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static net.pincette.util.Util.tryToDoSilent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only queue of byte arrays that is stored in memory-mapped segment files. Each record
+ * has a header with its length and a CRC32C checksum. A length of zero marks the end of the data in
+ * a segment. Records that have been consumed get a negative length, so they are not replayed after
+ * a restart. When the total size of the segments would exceed the maximum, the oldest segment is
+ * deleted. A record with a wrong checksum makes the rest of its segment untrustworthy, so the
+ * segment is deleted and its remaining records are counted as dropped.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+final class Spool {
+  private static final String EXTENSION = ".seg";
+  private static final int HEADER = 8;
+
+  private final CRC32C crc = new CRC32C();
+  private final Path directory;
+  private final long maxBytes;
+  private final int segmentBytes;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private long dropped;
+  private long nextSequence;
+  private long pending;
+  private int readPosition;
+  private Segment write;
+
+  Spool(final Path directory, final long maxBytes, final long segmentBytes) throws IOException {
+    if (segmentBytes <= HEADER || segmentBytes > Integer.MAX_VALUE || maxBytes < segmentBytes) {
+      throw new IllegalArgumentException(
+          "The segment size should be larger than "
+              + HEADER
+              + ", not larger than "
+              + Integer.MAX_VALUE
+              + " and not larger than the maximum size");
+    }
+
+    this.directory = createDirectories(directory);
+    this.maxBytes = maxBytes;
+    this.segmentBytes = (int) segmentBytes;
+
+    try (Stream<Path> files = list(directory)) {
+      for (final Path file :
+          files.filter(f -> f.getFileName().toString().endsWith(EXTENSION)).sorted().toList()) {
+        final Segment segment = map(file, sequence(file), false);
+
+        segments.addLast(segment);
+        pending += countRecords(segment, 0);
+      }
+    }
+
+    nextSequence = segments.isEmpty() ? 0 : segments.peekLast().sequence + 1;
+  }
+
+  private static MappedByteBuffer buffer(final Path file, final int size, final boolean create)
+      throws IOException {
+    try (FileChannel channel =
+        create
+            ? FileChannel.open(file, CREATE_NEW, READ, WRITE)
+            : FileChannel.open(file, READ, WRITE)) {
+      return channel.map(READ_WRITE, 0, create ? size : channel.size());
+    }
+  }
+
+  private static long next(final int position, final int length) {
+    return (long) position + HEADER + Math.abs((long) length);
+  }
+
+  private static long sequence(final Path file) {
+    final String name = file.getFileName().toString();
+
+    return Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @param data the record.
+   * @return Whether the record was appended. It is not when it doesn't fit in a segment.
+   */
+  synchronized boolean append(final byte[] data) {
+    if (HEADER + data.length > segmentBytes) {
+      ++dropped;
+
+      return false;
+    }
+
+    if (write == null || next(write.position, data.length) > write.buffer.capacity()) {
+      roll();
+    }
+
+    final int position = write.position;
+
+    write.buffer.putInt(position + 4, checksum(data));
+    write.buffer.put(position + HEADER, data);
+    write.buffer.putInt(position, data.length);
+    write.position += HEADER + data.length;
+    ++pending;
+
+    return true;
+  }
+
+  private int checksum(final byte[] data) {
+    crc.reset();
+    crc.update(data);
+
+    return (int) crc.getValue();
+  }
+
+  synchronized void close() {
+    segments.forEach(s -> s.buffer.force());
+    segments.clear();
+    write = null;
+  }
+
+  /**
+   * Marks an entry that was returned by {@link #peek()} as consumed. Nothing happens if the entry
+   * is no longer the oldest one, which is the case when retention has deleted its segment in the
+   * meantime.
+   *
+   * @param entry the entry.
+   */
+  synchronized void commit(final Entry entry) {
+    final Segment segment = segments.peekFirst();
+
+    if (segment != null
+        && segment.sequence == entry.sequence
+        && readPosition == entry.position
+        && segment.buffer.getInt(readPosition) == entry.data.length) {
+      segment.buffer.putInt(readPosition, -entry.data.length);
+      readPosition += HEADER + entry.data.length;
+      --pending;
+    }
+  }
+
+  private long countRecords(final Segment segment, final int from) {
+    final MappedByteBuffer buffer = segment.buffer;
+    long count = 0;
+    int position = from;
+
+    while (position + HEADER <= buffer.capacity()) {
+      final int length = buffer.getInt(position);
+      final long next = next(position, length);
+
+      if (length == 0 || next > buffer.capacity()) {
+        break;
+      }
+
+      if (length > 0) {
+        ++count;
+      }
+
+      position = (int) next;
+    }
+
+    return count;
+  }
+
+  /**
+   * Deletes the oldest segment. The records in it that haven't been consumed are counted as
+   * dropped.
+   */
+  private void deleteFirst() {
+    final Segment segment = segments.removeFirst();
+    final long remaining = countRecords(segment, readPosition);
+
+    dropped += remaining;
+    pending -= remaining;
+
+    if (segment == write) {
+      write = null;
+    }
+
+    readPosition = 0;
+    tryToDoSilent(() -> deleteIfExists(segment.file));
+  }
+
+  /**
+   * Returns the number of records that were lost, because they were too large, corrupt or removed
+   * by the retention.
+   *
+   * @return The number of dropped records.
+   */
+  synchronized long dropped() {
+    return dropped;
+  }
+
+  synchronized boolean isEmpty() {
+    return pending == 0;
+  }
+
+  private Segment map(final Path file, final long sequence, final boolean create)
+      throws IOException {
+    return new Segment(file, sequence, buffer(file, segmentBytes, create));
+  }
+
+  /**
+   * Returns the oldest record that hasn't been consumed yet, without consuming it. Segments that
+   * are completely consumed are deleted.
+   *
+   * @return The record or <code>null</code> if there is none.
+   */
+  synchronized Entry peek() {
+    while (!segments.isEmpty()) {
+      final Segment segment = segments.peekFirst();
+      final byte[] data = record(segment);
+
+      if (data != null) {
+        return new Entry(segment.sequence, readPosition, data);
+      }
+
+      if (segment == write && segment.position == readPosition) {
+        return null;
+      }
+
+      deleteFirst();
+    }
+
+    return null;
+  }
+
+  private byte[] record(final Segment segment) {
+    final MappedByteBuffer buffer = segment.buffer;
+
+    while (readPosition + HEADER <= buffer.capacity()) {
+      final int length = buffer.getInt(readPosition);
+      final long next = next(readPosition, length);
+
+      if (length == 0) {
+        return null;
+      }
+
+      if (next > buffer.capacity()) {
+        ++dropped; // The remainder of the segment can't be trusted.
+
+        return null;
+      }
+
+      if (length < 0) {
+        readPosition = (int) next;
+      } else {
+        final byte[] data = new byte[length];
+
+        buffer.get(readPosition + HEADER, data);
+
+        return checksum(data) == buffer.getInt(readPosition + 4) ? data : null;
+      }
+    }
+
+    return null;
+  }
+
+  private void roll() {
+    if (write != null) {
+      write.buffer.force();
+    }
+
+    while (!segments.isEmpty() && (long) (segments.size() + 1) * segmentBytes > maxBytes) {
+      deleteFirst();
+    }
+
+    // Sequences are never reused, so a stale entry can't match a new segment.
+    final long sequence = nextSequence++;
+
+    try {
+      write =
+          map(directory.resolve(String.format("%020d%s", sequence, EXTENSION)), sequence, true);
+      segments.addLast(write);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** A record together with its location, which is needed to commit it. */
+  static final class Entry {
+    final byte[] data;
+    private final int position;
+    private final long sequence;
+
+    private Entry(final long sequence, final int position, final byte[] data) {
+      this.data = data;
+      this.position = position;
+      this.sequence = sequence;
+    }
+  }
+
+  private static class Segment {
+    private final MappedByteBuffer buffer;
+    private final Path file;
+    private final long sequence;
+    private int position;
+
+    private Segment(final Path file, final long sequence, final MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      this.file = file;
+      this.sequence = sequence;
+    }
+  }
+}
@@ -0,0 +1,411 @@
+package net.pincette.jes.tel;
+
+import static java.lang.System.nanoTime;
+import static java.net.http.HttpRequest.BodyPublishers.ofByteArray;
+import static java.net.http.HttpResponse.BodyHandlers.discarding;
+import static java.time.Duration.ofSeconds;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.util.Util.tryToDoRethrow;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import com.typesafe.config.Config;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.logs.export.LogRecordExporter;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.export.MetricExporter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wraps an OTLP HTTP exporter. When an export fails, the OTLP protobuf request is appended to a
+ * {@link Spool}. As long as the spool is not empty or an export is in flight, new exports also go
+ * to it, in order to keep the order. A background thread replays the spool to the endpoint at a
+ * limited rate, with the same headers and compression as the wrapped exporter. Only <code>gzip
+ * </code> compression is replayed as such, other compressions are replayed uncompressed. The result
+ * of an export that went to the spool is a failure, because the data hasn't reached the endpoint
+ * yet.
+ *
+ * <p>The configuration has the following entries:
+ *
+ * <dl>
+ *   <dt>directory
+ *   <dd>The directory where the segment files are stored. It is mandatory.
+ *   <dt>maxSize
+ *   <dd>The maximum size of the spool. The default is 256MB.
+ *   <dt>segmentSize
+ *   <dd>The size of a segment file. The default is 16MB.
+ *   <dt>replayRate
+ *   <dd>The maximum number of requests per second during replay. The default is 10.
+ *   <dt>retryInterval
+ *   <dd>The time replay waits after a failed request. The default is 5s.
+ * </dl>
+ *
+ * @param <T> the exported data type.
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+final class SpoolingExporter<T> {
+  private static final String CONTENT_ENCODING = "Content-Encoding";
+  private static final String CONTENT_TYPE = "Content-Type";
+  private static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+  private static final int DEFAULT_REPLAY_RATE = 10;
+  private static final Duration DEFAULT_RETRY_INTERVAL = ofSeconds(5);
+  private static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+  private static final String DIRECTORY = "directory";
+  private static final String GZIP = "gzip";
+  private static final String MAX_SIZE = "maxSize";
+  private static final String PROTOBUF = "application/x-protobuf";
+  private static final String REPLAY_RATE = "replayRate";
+  private static final String RETRY_INTERVAL = "retryInterval";
+  private static final String SEGMENT_SIZE = "segmentSize";
+  private static final Duration TIMEOUT = ofSeconds(10);
+
+  private final HttpClient client = HttpClient.newHttpClient();
+  private final Function<Collection<T>, CompletableResultCode> delegate;
+  private final URI endpoint;
+  private final ScheduledExecutorService executor;
+  private final boolean gzip;
+  private final Map<String, String> headers;
+  private final String kind;
+  private final Function<Collection<T>, byte[]> marshaler;
+  private final Supplier<CompletableResultCode> shutdown;
+  private final long retryIntervalNanos;
+  private final Spool spool;
+  private final Deque<Waiting<T>> waiting = new ArrayDeque<>();
+  private boolean inFlight;
+  private long retryAt = nanoTime();
+
+  private SpoolingExporter(
+      final Function<Collection<T>, CompletableResultCode> delegate,
+      final Function<Collection<T>, byte[]> marshaler,
+      final Supplier<CompletableResultCode> shutdown,
+      final String endpoint,
+      final Map<String, String> headers,
+      final String compression,
+      final Config config,
+      final String kind) {
+    this.delegate = delegate;
+    this.endpoint = URI.create(endpoint);
+    this.headers = headers;
+    gzip = GZIP.equals(compression);
+    this.kind = kind;
+    this.marshaler = marshaler;
+    this.shutdown = shutdown;
+    retryIntervalNanos =
+        configValue(config::getDuration, RETRY_INTERVAL).orElse(DEFAULT_RETRY_INTERVAL).toNanos();
+    spool =
+        tryToGetRethrow(
+            () ->
+                new Spool(
+                    Path.of(config.getString(DIRECTORY)).resolve(kind),
+                    configValue(config::getBytes, MAX_SIZE).orElse(DEFAULT_MAX_SIZE),
+                    configValue(config::getBytes, SEGMENT_SIZE).orElse(DEFAULT_SEGMENT_SIZE)));
+    SelfTelemetry.spool(kind, spool);
+    executor =
+        newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().daemon().name("otlp-spool-" + kind).factory());
+    executor.scheduleWithFixedDelay(
+        this::replay,
+        0,
+        1000000000L / configValue(config::getInt, REPLAY_RATE).orElse(DEFAULT_REPLAY_RATE),
+        NANOSECONDS);
+  }
+
+  private static void complete(
+      final CompletableResultCode result, final CompletableResultCode outcome) {
+    if (outcome.isSuccess()) {
+      result.succeed();
+    } else {
+      result.fail();
+    }
+  }
+
+  private static byte[] gzip(final byte[] data) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+
+    tryToDoRethrow(
+        () -> {
+          try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+            zip.write(data);
+          }
+        });
+
+    return out.toByteArray();
+  }
+
+  private static boolean isFinal(final int status) {
+    return (status >= 200 && status < 300) || (status >= 400 && status < 500 && status != 429);
+  }
+
+  /**
+   * Wraps an OTLP HTTP log record exporter.
+   *
+   * @param delegate the exporter that is used as long as the spool is empty.
+   * @param endpoint the URL of the exporter.
+   * @param headers the headers the exporter sends.
+   * @param compression the compression of the exporter.
+   * @param config the spool configuration.
+   * @return The wrapping exporter.
+   */
+  static LogRecordExporter logRecordExporter(
+      final LogRecordExporter delegate,
+      final String endpoint,
+      final Map<String, String> headers,
+      final String compression,
+      final Config config) {
+    final SpoolingExporter<LogRecordData> exporter =
+        new SpoolingExporter<>(
+            delegate::export,
+            OtlpMarshalers::logsProtobuf,
+            delegate::shutdown,
+            endpoint,
+            headers,
+            compression,
+            config,
+            "logs");
+
+    return new LogRecordExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<LogRecordData> logs) {
+        return exporter.export(logs);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return delegate.flush();
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return exporter.shutdown();
+      }
+    };
+  }
+
+  /**
+   * Wraps an OTLP HTTP metric exporter.
+   *
+   * @param delegate the exporter that is used as long as the spool is empty.
+   * @param endpoint the URL of the exporter.
+   * @param headers the headers the exporter sends.
+   * @param compression the compression of the exporter.
+   * @param config the spool configuration.
+   * @return The wrapping exporter.
+   */
+  static MetricExporter metricExporter(
+      final MetricExporter delegate,
+      final String endpoint,
+      final Map<String, String> headers,
+      final String compression,
+      final Config config) {
+    final SpoolingExporter<MetricData> exporter =
+        new SpoolingExporter<>(
+            delegate::export,
+            OtlpMarshalers::metricsProtobuf,
+            delegate::shutdown,
+            endpoint,
+            headers,
+            compression,
+            config,
+            "metrics");
+
+    return new MetricExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<MetricData> metrics) {
+        return exporter.export(metrics);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return delegate.flush();
+      }
+
+      @Override
+      public AggregationTemporality getAggregationTemporality(final InstrumentType type) {
+        return delegate.getAggregationTemporality(type);
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return exporter.shutdown();
+      }
+    };
+  }
+
+  /**
+   * Appends a request to the spool. When the spool is full the request is dropped, which the spool
+   * counts.
+   *
+   * @param data the OTLP protobuf request.
+   * @return A failed result, which has the exception when the spool couldn't be written.
+   */
+  private CompletableResultCode append(final byte[] data) {
+    try {
+      spool.append(data);
+
+      return CompletableResultCode.ofFailure();
+    } catch (UncheckedIOException e) {
+      return CompletableResultCode.ofExceptionalFailure(e);
+    }
+  }
+
+  private CompletableResultCode append(final Collection<T> items) {
+    try {
+      return append(marshaler.apply(items));
+    } catch (UncheckedIOException e) {
+      return CompletableResultCode.ofExceptionalFailure(e);
+    }
+  }
+
+  /**
+   * Sends the batch to the delegate when nothing is spooled and no other batch is in flight.
+   * Otherwise the batch is spooled. Batches that arrive while one is in flight are held until it
+   * has completed. When it succeeded they are sent to the delegate one by one, otherwise they are
+   * spooled behind it.
+   *
+   * @param items the batch.
+   * @return The result, which only succeeds when the delegate has exported the batch.
+   */
+  private CompletableResultCode export(final Collection<T> items) {
+    synchronized (this) {
+      if (inFlight) {
+        return hold(items);
+      }
+
+      if (!spool.isEmpty()) {
+        return append(items);
+      }
+
+      inFlight = true;
+    }
+
+    final CompletableResultCode result = new CompletableResultCode();
+
+    // The caller may reuse the collection when the result takes too long.
+    forward(List.copyOf(items), result);
+
+    return result;
+  }
+
+  private void forward(final Collection<T> items, final CompletableResultCode result) {
+    final CompletableResultCode exported = delegate.apply(items);
+
+    exported.whenComplete(
+        () -> {
+          final CompletableResultCode outcome;
+          final Waiting<T> next;
+
+          synchronized (this) {
+            if (exported.isSuccess()) {
+              outcome = exported;
+              next = waiting.pollFirst();
+            } else {
+              outcome = append(items);
+              next = null;
+
+              while (!waiting.isEmpty()) {
+                final Waiting<T> w = waiting.removeFirst();
+
+                complete(w.result, append(w.items));
+              }
+            }
+
+            inFlight = next != null;
+          }
+
+          complete(result, outcome);
+
+          if (next != null) {
+            forward(next.items, next.result);
+          }
+        });
+  }
+
+  private CompletableResultCode hold(final Collection<T> items) {
+    final Waiting<T> w = new Waiting<>(List.copyOf(items), new CompletableResultCode());
+
+    waiting.addLast(w);
+
+    return w.result;
+  }
+
+  private void replay() {
+    if (nanoTime() - retryAt >= 0) {
+      final Spool.Entry spooled = spool.peek();
+
+      if (spooled != null) {
+        if (send(spooled.data)) {
+          spool.commit(spooled);
+        } else {
+          retryAt = nanoTime() + retryIntervalNanos;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends a spooled request. Client errors other than 429 are considered final, because the
+   * request will never be accepted.
+   *
+   * @param data the OTLP protobuf request.
+   * @return Whether the request doesn't have to be sent again.
+   */
+  private boolean send(final byte[] data) {
+    final HttpRequest.Builder builder =
+        HttpRequest.newBuilder(endpoint).timeout(TIMEOUT).header(CONTENT_TYPE, PROTOBUF);
+
+    headers.forEach(builder::header);
+
+    if (gzip) {
+      builder.header(CONTENT_ENCODING, GZIP);
+    }
+
+    try {
+      return isFinal(
+          client
+              .send(builder.POST(ofByteArray(gzip ? gzip(data) : data)).build(), discarding())
+              .statusCode());
+    } catch (IOException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      return false;
+    }
+  }
+
+  /**
+   * Lets a running replay finish, because otherwise a request the endpoint has accepted may not be
+   * committed and would be sent again after a restart.
+   */
+  private CompletableResultCode shutdown() {
+    executor.shutdown();
+    tryToDoRethrow(() -> executor.awaitTermination(TIMEOUT.toNanos(), NANOSECONDS));
+    SelfTelemetry.spoolClosed(kind, spool);
+    spool.close();
+
+    return shutdown.get();
+  }
+
+  private record Waiting<U>(Collection<U> items, CompletableResultCode result) {}
+}
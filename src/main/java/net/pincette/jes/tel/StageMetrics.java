@@ -0,0 +1,128 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static net.pincette.util.Util.tryToDoSilent;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import java.util.List;
+import java.util.concurrent.Flow.Processor;
+import java.util.concurrent.atomic.AtomicLong;
+import net.pincette.rs.ProcessorBase;
+
+/**
+ * A pass-through processor that can be inserted between two stages of a reactive streams pipeline.
+ * It doesn't change the items or the flow of demand. The following instruments are fed, with the
+ * dimension <code>rs.stage.name</code>:
+ *
+ * <dl>
+ *   <dt><code>rs.stage.items</code>
+ *   <dd>The number of items that went through. The backend derives the rate from it.
+ *   <dt><code>rs.stage.duration</code>
+ *   <dd>A histogram of the time in seconds the downstream stage spends in <code>onNext</code> for
+ *       one item.
+ *   <dt><code>rs.stage.demand</code>
+ *   <dd>The outstanding demand, which is the number of items the downstream stage has requested
+ *       but not yet received. When it stays at zero the stage is waiting for downstream, which is
+ *       the back pressure bottleneck. When it stays high the upstream stages are too slow. It is
+ *       -1 when the downstream stage has requested an unbounded number of items.
+ * </dl>
+ *
+ * <p>The gauge is removed when the stream completes, fails or is cancelled.
+ *
+ * @param <T> the value type.
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class StageMetrics<T> extends ProcessorBase<T, T> {
+  private static final List<Double> DURATION_BUCKETS =
+      List.of(0.00001, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1.0, 5.0);
+  private static final String RS_STAGE_DEMAND = "rs.stage.demand";
+  private static final String RS_STAGE_DURATION = "rs.stage.duration";
+  private static final String RS_STAGE_ITEMS = "rs.stage.items";
+  private static final AttributeKey<String> RS_STAGE_NAME = stringKey("rs.stage.name");
+
+  private final Attributes attributes;
+  private final AtomicLong delivered = new AtomicLong();
+  private final AutoCloseable demand;
+  private final DoubleHistogram duration;
+  private final LongCounter items;
+  private final AtomicLong requested = new AtomicLong();
+
+  private StageMetrics(final Meter meter, final String stage) {
+    attributes = Attributes.of(RS_STAGE_NAME, stage);
+    demand =
+        meter
+            .gaugeBuilder(RS_STAGE_DEMAND)
+            .ofLongs()
+            .buildWithCallback(measurement -> measurement.record(demand(), attributes));
+    duration =
+        meter
+            .histogramBuilder(RS_STAGE_DURATION)
+            .setUnit("s")
+            .setExplicitBucketBoundariesAdvice(DURATION_BUCKETS)
+            .build();
+    items = meter.counterBuilder(RS_STAGE_ITEMS).build();
+  }
+
+  /**
+   * Creates the processor.
+   *
+   * @param meter the meter from which the instruments are created.
+   * @param stage the name of the stage, which should be unique within the pipeline.
+   * @return The processor.
+   * @param <T> the value type.
+   */
+  public static <T> Processor<T, T> stageMetrics(final Meter meter, final String stage) {
+    return new StageMetrics<>(meter, stage);
+  }
+
+  @Override
+  public void cancel() {
+    close();
+    super.cancel();
+  }
+
+  private void close() {
+    tryToDoSilent(demand::close);
+  }
+
+  private long demand() {
+    final long r = requested.get();
+
+    return r == Long.MAX_VALUE ? -1 : max(r - delivered.get(), 0);
+  }
+
+  @Override
+  protected void emit(final long number) {
+    requested.accumulateAndGet(number, (r, n) -> r + n < 0 ? Long.MAX_VALUE : r + n);
+    subscription.request(number);
+  }
+
+  @Override
+  public void onComplete() {
+    close();
+    super.onComplete();
+  }
+
+  @Override
+  public void onError(final Throwable throwable) {
+    close();
+    super.onError(throwable);
+  }
+
+  @Override
+  public void onNext(final T item) {
+    final long start = nanoTime();
+
+    delivered.incrementAndGet();
+    subscriber.onNext(item);
+    duration.record((nanoTime() - start) / 1000000000.0, attributes);
+    items.add(1, attributes);
+  }
+}
@@ -0,0 +1,233 @@
+package net.pincette.jes.tel;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import java.util.Objects;
+
+/**
+ * A trace ID and a span ID in binary form. The trace ID is held in two longs and the span ID in
+ * one. The hexadecimal forms and the <code>SpanContext</code> are computed only once, so the object
+ * can be reused for all log records of a trace without any further validation or conversion. Like
+ * <code>SpanContext.create</code>, malformed input doesn't cause an exception, but results in an
+ * invalid object.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public final class TraceIds {
+  public static final TraceIds INVALID = new TraceIds(0L, 0L, 0L);
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final byte[] NIBBLES = nibbles();
+  private static final int SPAN_ID_LENGTH = 16;
+  private static final int TRACE_ID_LENGTH = 32;
+  private static final int UUID_LENGTH = 36;
+
+  public final long spanId;
+  public final long traceIdHigh;
+  public final long traceIdLow;
+
+  // Lazily computed. The races are benign, because the values are immutable.
+  private SpanContext spanContext;
+  private String spanIdText;
+  private String traceIdText;
+
+  private TraceIds(final long traceIdHigh, final long traceIdLow, final long spanId) {
+    this.spanId = spanId;
+    this.traceIdHigh = traceIdHigh;
+    this.traceIdLow = traceIdLow;
+  }
+
+  private static long decode(
+      final String s, final int start, final int end, final boolean skipDashes) {
+    long result = 0L;
+
+    for (int i = start; i < end; ++i) {
+      final char c = s.charAt(i);
+
+      if (!skipDashes || !isUuidDash(i)) {
+        final int nibble = c < NIBBLES.length ? NIBBLES[c] : -1;
+
+        if (nibble == -1) {
+          throw new NumberFormatException(s);
+        }
+
+        result = (result << 4) | nibble;
+      }
+    }
+
+    return result;
+  }
+
+  private static void encode(final long value, final char[] chars, final int offset) {
+    for (int i = 0; i < 16; ++i) {
+      chars[offset + i] = HEX[(int) (value >>> (60 - i * 4)) & 0xf];
+    }
+  }
+
+  /**
+   * Decodes hexadecimal trace and span IDs. The trace ID may also be a UUID with dashes, which is
+   * how JES correlation IDs usually look. Upper and lower case are both accepted.
+   *
+   * @param traceId the trace ID with 32 hexadecimal characters or a UUID.
+   * @param spanId the span ID with 16 hexadecimal characters. It may be <code>null</code>, in
+   *     which case there is no span ID.
+   * @return The IDs, which are invalid when the trace ID is malformed.
+   */
+  public static TraceIds fromHex(final String traceId, final String spanId) {
+    if (traceId == null || !hasTraceIdLength(traceId)) {
+      return INVALID;
+    }
+
+    try {
+      final boolean uuid = traceId.length() == UUID_LENGTH;
+      final int middle = uuid ? 19 : 16;
+
+      return traceIds(
+          decode(traceId, 0, middle, uuid),
+          decode(traceId, middle, traceId.length(), uuid),
+          spanId != null && spanId.length() == SPAN_ID_LENGTH
+              ? decode(spanId, 0, SPAN_ID_LENGTH, false)
+              : 0L);
+    } catch (NumberFormatException e) {
+      return INVALID;
+    }
+  }
+
+  private static boolean hasTraceIdLength(final String traceId) {
+    return traceId.length() == TRACE_ID_LENGTH
+        || (traceId.length() == UUID_LENGTH
+            && traceId.charAt(8) == '-'
+            && traceId.charAt(13) == '-'
+            && traceId.charAt(18) == '-'
+            && traceId.charAt(23) == '-');
+  }
+
+  private static boolean isUuidDash(final int position) {
+    return position == 8 || position == 13 || position == 18 || position == 23;
+  }
+
+  private static byte[] nibbles() {
+    final byte[] result = new byte[128];
+
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = -1;
+    }
+
+    for (int i = 0; i < HEX.length; ++i) {
+      result[HEX[i]] = (byte) i;
+      result[Character.toUpperCase(HEX[i])] = (byte) i;
+    }
+
+    return result;
+  }
+
+  private static String toHex(final long value) {
+    final char[] chars = new char[SPAN_ID_LENGTH];
+
+    encode(value, chars, 0);
+
+    return new String(chars);
+  }
+
+  private static String toHex(final long high, final long low) {
+    final char[] chars = new char[TRACE_ID_LENGTH];
+
+    encode(high, chars, 0);
+    encode(low, chars, SPAN_ID_LENGTH);
+
+    return new String(chars);
+  }
+
+  /**
+   * Creates IDs from their binary form.
+   *
+   * @param traceIdHigh the high order bits of the trace ID.
+   * @param traceIdLow the low order bits of the trace ID.
+   * @param spanId the span ID. It may be zero when there is no span.
+   * @return The IDs, which are invalid when the trace ID is zero.
+   */
+  public static TraceIds traceIds(
+      final long traceIdHigh, final long traceIdLow, final long spanId) {
+    return traceIdHigh == 0L && traceIdLow == 0L
+        ? INVALID
+        : new TraceIds(traceIdHigh, traceIdLow, spanId);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    return this == o
+        || (o instanceof TraceIds t
+            && traceIdHigh == t.traceIdHigh
+            && traceIdLow == t.traceIdLow
+            && spanId == t.spanId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(traceIdHigh, traceIdLow, spanId);
+  }
+
+  public boolean hasSpanId() {
+    return spanId != 0L;
+  }
+
+  /**
+   * Says if the trace ID is valid. The span ID may still be absent.
+   *
+   * @return Whether the trace ID is valid.
+   */
+  public boolean isValid() {
+    return traceIdHigh != 0L || traceIdLow != 0L;
+  }
+
+  /**
+   * Returns the span context with the default trace flags and state. It is created only once.
+   *
+   * @return The span context, which is invalid when the trace ID is invalid or when there is no
+   *     span ID.
+   */
+  public SpanContext spanContext() {
+    if (spanContext == null) {
+      spanContext =
+          isValid() && hasSpanId()
+              ? SpanContext.create(
+                  traceIdHex(), spanIdHex(), TraceFlags.getDefault(), TraceState.getDefault())
+              : SpanContext.getInvalid();
+    }
+
+    return spanContext;
+  }
+
+  /**
+   * Returns the span ID in lower case hexadecimal form.
+   *
+   * @return The span ID.
+   */
+  public String spanIdHex() {
+    if (spanIdText == null) {
+      spanIdText = toHex(spanId);
+    }
+
+    return spanIdText;
+  }
+
+  @Override
+  public String toString() {
+    return traceIdHex() + "-" + spanIdHex();
+  }
+
+  /**
+   * Returns the trace ID in lower case hexadecimal form.
+   *
+   * @return The trace ID.
+   */
+  public String traceIdHex() {
+    if (traceIdText == null) {
+      traceIdText = toHex(traceIdHigh, traceIdLow);
+    }
+
+    return traceIdText;
+  }
+}
@@ -0,0 +1,196 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.lang.System.nanoTime;
+import static java.time.Duration.between;
+import static net.pincette.rs.LambdaSubscriber.lambdaSubscriber;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow.Subscriber;
+
+/**
+ * Derives latencies from a stream of {@link EventTrace} objects. Consecutive traces with the same
+ * trace ID are considered to be hops between services. The following instruments are fed:
+ *
+ * <dl>
+ *   <dt><code>event.trace.hop.duration</code>
+ *   <dd>A histogram of the time in seconds between two consecutive traces. The dimensions are
+ *       <code>event.trace.from</code> and <code>event.trace.to</code>, which are the services of
+ *       the traces.
+ *   <dt><code>event.trace.duration</code>
+ *   <dd>A histogram of the time in seconds between the first trace and the current one. The
+ *       dimensions are <code>event.trace.from</code>, which is the service of the first trace, and
+ *       <code>event.trace.to</code>. This gives, for example, the command-to-event or the
+ *       event-to-projection latency.
+ *   <dt><code>event.trace.evicted</code>
+ *   <dd>The number of open traces that were removed from the index, either because they were idle
+ *       for longer than the window or because the index was full.
+ * </dl>
+ *
+ * <p>The service of a trace is its <code>serviceName</code>, or the <code>moduleName</code> when
+ * there is no service name. The open traces are kept in memory in the order of their last use. A
+ * trace that is older than the last one of its trace ID arrived out of order. It isn't measured
+ * and it doesn't change the hop the next trace is measured from. A trace ID that is a UUID and the
+ * same one with 32 hexadecimal characters are considered to be equal.
+ *
+ * @author Werner Donné
+ * @since 1.0.8
+ */
+public class TraceLatency {
+  private static final List<Double> BUCKETS =
+      List.of(0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0);
+  private static final String EVENT_TRACE_DURATION = "event.trace.duration";
+  private static final String EVENT_TRACE_EVICTED = "event.trace.evicted";
+  private static final AttributeKey<String> EVENT_TRACE_FROM = stringKey("event.trace.from");
+  private static final String EVENT_TRACE_HOP_DURATION = "event.trace.hop.duration";
+  private static final AttributeKey<String> EVENT_TRACE_TO = stringKey("event.trace.to");
+  private static final String UNKNOWN = "unknown";
+
+  private final Map<String, Attributes> attributes = new HashMap<>();
+  private final DoubleHistogram duration;
+  private final LongCounter evicted;
+  private final DoubleHistogram hopDuration;
+  private final int maxTraces;
+  private final Map<String, OpenTrace> traces;
+  private final long windowNanos;
+
+  private TraceLatency(final Meter meter, final Duration window, final int maxTraces) {
+    this.maxTraces = maxTraces;
+    this.windowNanos = window.toNanos();
+    duration = histogram(meter, EVENT_TRACE_DURATION);
+    evicted = meter.counterBuilder(EVENT_TRACE_EVICTED).build();
+    hopDuration = histogram(meter, EVENT_TRACE_HOP_DURATION);
+    traces = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  private static DoubleHistogram histogram(final Meter meter, final String name) {
+    return meter
+        .histogramBuilder(name)
+        .setUnit("s")
+        .setExplicitBucketBoundariesAdvice(BUCKETS)
+        .build();
+  }
+
+  private static String key(final String traceId) {
+    final TraceIds ids = TraceIds.fromHex(traceId, null);
+
+    return ids.isValid() ? ids.traceIdHex() : traceId;
+  }
+
+  private static String service(final EventTrace trace) {
+    if (trace.serviceName != null) {
+      return trace.serviceName;
+    }
+
+    return trace.moduleName != null ? trace.moduleName : UNKNOWN;
+  }
+
+  private static double seconds(final Instant from, final Instant to) {
+    return between(from, to).toNanos() / 1000000000.0;
+  }
+
+  /**
+   * Creates a subscriber that consumes event traces. Traces without a trace ID or a timestamp are
+   * ignored.
+   *
+   * @param meter the meter from which the instruments are created.
+   * @param window the time after which an open trace that has no new traces is removed.
+   * @param maxTraces the maximum number of open traces that are kept. When it is reached the least
+   *     recently used trace is removed.
+   * @return The subscriber.
+   */
+  public static Subscriber<EventTrace> subscriber(
+      final Meter meter, final Duration window, final int maxTraces) {
+    if (maxTraces < 1) {
+      throw new IllegalArgumentException("The maximum number of traces should be at least 1");
+    }
+
+    final TraceLatency latency = new TraceLatency(meter, window, maxTraces);
+
+    return lambdaSubscriber(latency::accept);
+  }
+
+  private void accept(final EventTrace trace) {
+    if (trace.traceId != null && trace.timestamp != null) {
+      final long now = nanoTime();
+      final String key = key(trace.traceId);
+      final String service = service(trace);
+      final OpenTrace open;
+
+      evict(now);
+      open = traces.get(key);
+
+      if (open == null) {
+        add(key, new OpenTrace(trace.timestamp, service, now));
+      } else {
+        if (!trace.timestamp.isBefore(open.last)) {
+          hopDuration.record(
+              seconds(open.last, trace.timestamp), attributes(open.lastService, service));
+          duration.record(seconds(open.first, trace.timestamp), attributes(open.origin, service));
+          open.last = trace.timestamp;
+          open.lastService = service;
+        }
+
+        open.seen = now;
+      }
+    }
+  }
+
+  private void add(final String traceId, final OpenTrace trace) {
+    if (traces.size() == maxTraces) {
+      final Iterator<OpenTrace> i = traces.values().iterator();
+
+      i.next();
+      i.remove();
+      evicted.add(1);
+    }
+
+    traces.put(traceId, trace);
+  }
+
+  private Attributes attributes(final String from, final String to) {
+    return attributes.computeIfAbsent(
+        from + "\u0000" + to, k -> Attributes.of(EVENT_TRACE_FROM, from, EVENT_TRACE_TO, to));
+  }
+
+  private void evict(final long now) {
+    final Iterator<OpenTrace> i = traces.values().iterator();
+    long count = 0;
+
+    while (i.hasNext() && now - i.next().seen > windowNanos) {
+      i.remove();
+      ++count;
+    }
+
+    if (count > 0) {
+      evicted.add(count);
+    }
+  }
+
+  private static class OpenTrace {
+    private final Instant first;
+    private final String origin;
+    private Instant last;
+    private String lastService;
+    private long seen;
+
+    private OpenTrace(final Instant first, final String origin, final long seen) {
+      this.first = first;
+      this.last = first;
+      this.lastService = origin;
+      this.origin = origin;
+      this.seen = seen;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.time.Duration.ofMillis;
+import static net.pincette.jes.tel.Stress.ITERATIONS;
+import static net.pincette.jes.tel.Stress.THREADS;
+import static net.pincette.jes.tel.Stress.histogramCount;
+import static net.pincette.jes.tel.Stress.longSum;
+import static net.pincette.jes.tel.Stress.run;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import net.pincette.netty.http.Metrics;
+import org.junit.jupiter.api.Test;
+
+class HttpMetricsTest {
+  private static final AttributeKey<String> HTTP_ROUTE = stringKey("http.route");
+  private static final long REQUEST_BYTES = 100;
+  private static final String[] PATHS = {"/orders/1", "/orders/2/items/3", "/other"};
+  private static final long RESPONSE_BYTES = 1000;
+
+  private static Metrics metrics(final int i) {
+    return new Metrics(
+        PATHS[i % PATHS.length],
+        "GET",
+        "http",
+        null,
+        200,
+        REQUEST_BYTES,
+        RESPONSE_BYTES,
+        Instant.now(),
+        ofMillis(i % 100));
+  }
+
+  /**
+   * Each thread has its own subscriber, because the reactive streams contract doesn't allow
+   * concurrent calls of <code>onNext</code>. The instruments are shared through the meter.
+   */
+  @Test
+  void totalsAreExact() throws InterruptedException {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+    final PathTemplates templates =
+        PathTemplates.pathTemplates(List.of("/orders/{id}", "/orders/{id}/items/{item}"));
+    final List<Collection<MetricData>> collections;
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      collections =
+          run(
+              reader,
+              thread -> {
+                final Subscriber<Metrics> subscriber =
+                    HttpMetrics.subscriber(
+                        provider.get("test"), templates, "instance", m -> null);
+
+                subscriber.onSubscribe(
+                    new Subscription() {
+                      @Override
+                      public void cancel() {
+                        // Nothing to cancel.
+                      }
+
+                      @Override
+                      public void request(final long n) {
+                        // The test pushes regardless of the demand.
+                      }
+                    });
+
+                for (int i = 0; i < ITERATIONS; ++i) {
+                  subscriber.onNext(metrics(i));
+                }
+              });
+    }
+
+    final Collection<MetricData> last = collections.get(collections.size() - 1);
+    final long total = (long) ITERATIONS * THREADS;
+
+    assertEquals(total, longSum(last, "http.server.requests", null));
+    assertEquals(total * REQUEST_BYTES, longSum(last, "http.server.request_bytes", null));
+    assertEquals(total * RESPONSE_BYTES, longSum(last, "http.server.response_bytes", null));
+    assertEquals(total, histogramCount(last, "http.server.duration_millis"));
+    assertEquals(
+        (long) (ITERATIONS + PATHS.length - 1) / PATHS.length * THREADS,
+        last.stream()
+            .filter(m -> m.getName().equals("http.server.requests"))
+            .flatMap(m -> m.getLongSumData().getPoints().stream())
+            .filter(p -> "/orders/{id}".equals(p.getAttributes().get(HTTP_ROUTE)))
+            .mapToLong(LongPointData::getValue)
+            .sum());
+  }
+}
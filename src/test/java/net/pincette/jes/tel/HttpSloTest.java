@@ -0,0 +1,150 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.time.Duration.ofMillis;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static net.pincette.jes.tel.Stress.COLLECTION_INTERVAL_NANOS;
+import static net.pincette.jes.tel.Stress.ITERATIONS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.DoublePointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.function.Function;
+import net.pincette.netty.http.Metrics;
+import org.junit.jupiter.api.Test;
+
+class HttpSloTest {
+  private static final AttributeKey<String> HTTP_ROUTE = stringKey("http.route");
+  private static final AttributeKey<String> SLO_WINDOW = stringKey("slo.window");
+  private static final List<String> WINDOWS = List.of("5m", "1h", "6h");
+
+  private static List<DoublePointData> burnRates(final Collection<MetricData> metrics) {
+    return metrics.stream()
+        .filter(m -> m.getName().equals("http.server.slo.burn_rate"))
+        .flatMap(m -> m.getDoubleGaugeData().getPoints().stream())
+        .toList();
+  }
+
+  private static Config config(final int maxRoutes) {
+    return ConfigFactory.parseMap(
+        Map.of("threshold", "100ms", "target", 0.9, "maxRoutes", maxRoutes));
+  }
+
+  private static Metrics metrics(final String path, final int statusCode, final long millis) {
+    return new Metrics(
+        path, "GET", "http", null, statusCode, 0, 0, Instant.now(), ofMillis(millis));
+  }
+
+  private static Subscriber<Metrics> subscriber(
+      final SdkMeterProvider provider, final Config config, final Function<String, String> route) {
+    final Subscriber<Metrics> subscriber =
+        HttpSlo.subscriber(provider.get("test"), config, route);
+
+    subscriber.onSubscribe(
+        new Subscription() {
+          @Override
+          public void cancel() {
+            // Nothing to cancel.
+          }
+
+          @Override
+          public void request(final long n) {
+            // The test pushes regardless of the demand.
+          }
+        });
+
+    return subscriber;
+  }
+
+  private static void assertBurnRate(
+      final double expected, final List<DoublePointData> points, final String route) {
+    for (final String window : WINDOWS) {
+      assertEquals(
+          expected,
+          points.stream()
+              .filter(p -> route.equals(p.getAttributes().get(HTTP_ROUTE)))
+              .filter(p -> window.equals(p.getAttributes().get(SLO_WINDOW)))
+              .findFirst()
+              .orElseThrow()
+              .getValue(),
+          1e-9,
+          route + " " + window);
+    }
+  }
+
+  @Test
+  void burnRateIsExactWhileCollecting() throws InterruptedException {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Subscriber<Metrics> subscriber = subscriber(provider, config(10), path -> path);
+      final Thread feeder =
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    for (int i = 0; i < ITERATIONS * 4; ++i) {
+                      subscriber.onNext(metrics("/a", i % 4 == 0 ? 500 : 200, 1));
+                    }
+                  });
+
+      while (feeder.isAlive()) {
+        burnRates(reader.collectAllMetrics())
+            .forEach(p -> assertTrue(p.getValue() >= 0 && p.getValue() <= 10));
+        parkNanos(COLLECTION_INTERVAL_NANOS);
+      }
+
+      feeder.join();
+      // A quarter is bad and the error budget is 0.1.
+      assertBurnRate(2.5, burnRates(reader.collectAllMetrics()), "/a");
+    }
+  }
+
+  @Test
+  void slowRequestsAreBad() {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Subscriber<Metrics> subscriber = subscriber(provider, config(10), path -> path);
+
+      subscriber.onNext(metrics("/a", 200, 100));
+      subscriber.onNext(metrics("/a", 200, 101));
+      subscriber.onNext(metrics("/a", 404, 1));
+      subscriber.onNext(metrics("/a", 503, 1));
+      assertBurnRate(5.0, burnRates(reader.collectAllMetrics()), "/a");
+    }
+  }
+
+  @Test
+  void routesAreCapped() {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Subscriber<Metrics> subscriber =
+          subscriber(provider, config(1), path -> path.equals("/ignored") ? null : path);
+
+      subscriber.onNext(metrics("/a", 500, 1));
+      subscriber.onNext(metrics("/b", 500, 1));
+      subscriber.onNext(metrics("/ignored", 500, 1));
+
+      final List<DoublePointData> points = burnRates(reader.collectAllMetrics());
+
+      assertBurnRate(10.0, points, "/a");
+      assertEquals(WINDOWS.size(), points.size());
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.longKey;
+import static net.pincette.jes.tel.OtelUtil.counter;
+import static net.pincette.jes.tel.OtelUtil.resettingCounter;
+import static net.pincette.jes.tel.Stress.ITERATIONS;
+import static net.pincette.jes.tel.Stress.THREADS;
+import static net.pincette.jes.tel.Stress.longSum;
+import static net.pincette.jes.tel.Stress.run;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+class OtelUtilTest {
+  private static final String COUNTER = "test.counter";
+  private static final int SERIES = 4;
+  private static final AttributeKey<Long> SERIES_KEY = longKey("series");
+
+  private static Attributes attributes(final long value) {
+    return Attributes.of(SERIES_KEY, value % SERIES);
+  }
+
+  @SuppressWarnings("deprecation")
+  private static List<Collection<MetricData>> hammer(
+      final InMemoryMetricReader reader, final boolean resetting) throws InterruptedException {
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Consumer<Long> count =
+          resetting
+              ? resettingCounter(
+                  provider.get("test"), COUNTER, OtelUtilTest::attributes, v -> v, new HashSet<>())
+              : counter(provider.get("test"), COUNTER, OtelUtilTest::attributes, v -> v);
+
+      return run(
+          reader,
+          thread -> {
+            for (long i = 0; i < ITERATIONS; ++i) {
+              count.accept(i);
+            }
+          });
+    }
+  }
+
+  /** The sum of the values <code>i</code> below <code>ITERATIONS</code> with the given series. */
+  private static long expected(final long series) {
+    long result = 0;
+
+    for (long i = series; i < ITERATIONS; i += SERIES) {
+      result += i;
+    }
+
+    return result * THREADS;
+  }
+
+  @Test
+  void counterTotalsAreExact() throws InterruptedException {
+    final List<Collection<MetricData>> collections =
+        hammer(InMemoryMetricReader.create(), false);
+    final Collection<MetricData> last = collections.get(collections.size() - 1);
+
+    for (long series = 0; series < SERIES; ++series) {
+      assertEquals(expected(series), longSum(last, COUNTER, attributes(series)));
+    }
+  }
+
+  @Test
+  void resettingCounterDeltasAddUp() throws InterruptedException {
+    final List<Collection<MetricData>> collections =
+        hammer(InMemoryMetricReader.createDelta(), true);
+
+    for (long series = 0; series < SERIES; ++series) {
+      final Attributes attributes = attributes(series);
+
+      assertEquals(
+          expected(series),
+          collections.stream().mapToLong(c -> longSum(c, COUNTER, attributes)).sum());
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static net.pincette.jes.tel.PathTemplates.pathTemplates;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PathTemplatesTest {
+  private static final PathTemplates TEMPLATES =
+      pathTemplates(
+          List.of(
+              "/orders",
+              "/orders/{id}",
+              "/orders/{id}/items/{item}",
+              "/orders/special",
+              "/orders/special/summary",
+              "/{tenant}/reports"));
+
+  @Test
+  void attributesAreShared() {
+    assertEquals("/orders/{id}", TEMPLATES.apply("/orders/1").get(stringKey("http.route")));
+    assertSame(TEMPLATES.apply("/orders/1"), TEMPLATES.apply("/orders/2"));
+  }
+
+  @Test
+  void literalsBeforeParameters() {
+    assertEquals("/orders/special", TEMPLATES.route("/orders/special"));
+    assertEquals("/orders/{id}", TEMPLATES.route("/orders/specials"));
+    assertEquals("/orders/special/summary", TEMPLATES.route("/orders/special/summary"));
+  }
+
+  @Test
+  void backtracksToParameter() {
+    // The literal "special" has no "items" child, so the parameter branch is tried.
+    assertEquals("/orders/{id}/items/{item}", TEMPLATES.route("/orders/special/items/3"));
+    assertEquals("/{tenant}/reports", TEMPLATES.route("/acme/reports"));
+  }
+
+  @Test
+  void emptySegmentsAndQueryAreIgnored() {
+    assertEquals("/orders/{id}", TEMPLATES.route("//orders///1/"));
+    assertEquals("/orders/{id}", TEMPLATES.route("/orders/1?expand=items/x"));
+    assertEquals("/orders", TEMPLATES.route("/orders?id=1"));
+  }
+
+  @Test
+  void noMatch() {
+    assertNull(TEMPLATES.route("/"));
+    assertNull(TEMPLATES.route(""));
+    assertNull(TEMPLATES.route("/orders/1/items"));
+    assertNull(TEMPLATES.route("/orders/1/items/2/3"));
+    assertNull(TEMPLATES.apply("/customers"));
+  }
+
+  @Test
+  void nullPath() {
+    assertNull(TEMPLATES.route(null));
+    assertNull(TEMPLATES.apply(null));
+  }
+}
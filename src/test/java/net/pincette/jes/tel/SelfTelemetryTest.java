@@ -0,0 +1,49 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static net.pincette.jes.tel.SelfTelemetry.selfTelemetry;
+import static net.pincette.jes.tel.Stress.ITERATIONS;
+import static net.pincette.jes.tel.Stress.THREADS;
+import static net.pincette.jes.tel.Stress.longSum;
+import static net.pincette.jes.tel.Stress.run;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import org.junit.jupiter.api.Test;
+
+class SelfTelemetryTest {
+  /** A level of its own, because the counters are shared by all the tests in the JVM. */
+  private static final Level LEVEL = new Level("STRESS", 850) {};
+
+  @Test
+  void publishedRecordsAreExact() throws Exception {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+    final List<Collection<MetricData>> collections;
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build();
+        AutoCloseable instruments = selfTelemetry(provider.get("test"))) {
+      collections =
+          run(
+              reader,
+              thread -> {
+                for (int i = 0; i < ITERATIONS; ++i) {
+                  SelfTelemetry.published(LEVEL);
+                }
+              });
+    }
+
+    assertEquals(
+        (long) ITERATIONS * THREADS,
+        longSum(
+            collections.get(collections.size() - 1),
+            "jes.tel.log.records",
+            Attributes.of(stringKey("jes.tel.level"), LEVEL.getName())));
+  }
+}
@@ -0,0 +1,72 @@
+package net.pincette.jes.tel;
+
+import static net.pincette.jes.tel.Stress.ITERATIONS;
+import static net.pincette.jes.tel.Stress.PLATFORM_THREADS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class SlowestSamplesTest {
+  private static final long INTERVAL = 1000;
+  private static final int SIZE = 3;
+
+  @Test
+  void concurrentOffersKeepTheSlotsFilled() throws InterruptedException {
+    final SlowestSamples samples = new SlowestSamples(SIZE, INTERVAL);
+    final AtomicLong accepted = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < PLATFORM_THREADS; ++i) {
+      threads.add(
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    try {
+                      start.await();
+
+                      for (int j = 0; j < ITERATIONS; ++j) {
+                        if (samples.offer(j, 0)) {
+                          accepted.incrementAndGet();
+                        }
+                      }
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                  }));
+    }
+
+    start.countDown();
+
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(accepted.get() >= SIZE);
+    // A slot only grows, so none is empty or smaller than a value that was rejected everywhere.
+    assertFalse(samples.offer(-1, 0));
+    assertFalse(samples.offer(0, 0));
+    assertTrue(samples.offer(ITERATIONS, 0));
+  }
+
+  @Test
+  void keepsTheLargestValues() {
+    final SlowestSamples samples = new SlowestSamples(SIZE, INTERVAL);
+    final long[] values = {5, 1, 7, 3, 2, 9, 4};
+    final boolean[] expected = {true, true, true, true, false, true, false};
+
+    for (int i = 0; i < values.length; ++i) {
+      assertEquals(expected[i], samples.offer(values[i], 10), "value " + values[i]);
+    }
+
+    // 5, 7 and 9 remain.
+    assertFalse(samples.offer(5, INTERVAL - 1));
+    assertTrue(samples.offer(1, INTERVAL));
+  }
+}
@@ -0,0 +1,153 @@
+package net.pincette.jes.tel;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class SpoolTest {
+  private static final int HEADER = 8;
+  private static final int RECORD = 20;
+  private static final int SEGMENT_SIZE = 2 * (HEADER + RECORD) + 8;
+
+  private static byte[] record(final int i) {
+    final byte[] result = new byte[RECORD];
+
+    result[0] = (byte) i;
+
+    return result;
+  }
+
+  @Test
+  void concurrentAppendAndCommitKeepTheOrder() throws IOException, InterruptedException {
+    final int records = 100000;
+    final Spool spool = new Spool(createTempDirectory("spool"), 64L * 1024 * 1024, 64L * 1024);
+    final List<Integer> consumed = new ArrayList<>();
+    final Thread writer =
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  for (int i = 0; i < records; ++i) {
+                    spool.append(ByteBuffer.allocate(4).putInt(i).array());
+                  }
+                });
+
+    while (consumed.size() < records) {
+      final Spool.Entry entry = spool.peek();
+
+      if (entry != null) {
+        consumed.add(ByteBuffer.wrap(entry.data).getInt());
+        spool.commit(entry);
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+
+    writer.join();
+
+    for (int i = 0; i < records; ++i) {
+      assertEquals(i, consumed.get(i));
+    }
+
+    assertTrue(spool.isEmpty());
+    assertEquals(0, spool.dropped());
+    spool.close();
+  }
+
+  @Test
+  void corruptRecordDropsTheRestOfItsSegment() throws IOException {
+    final Path directory = createTempDirectory("spool");
+    final Spool spool = new Spool(directory, 4L * SEGMENT_SIZE, SEGMENT_SIZE);
+
+    spool.append(record(0));
+    spool.append(record(1));
+    spool.append(record(2)); // In the second segment.
+    spool.close();
+
+    try (FileChannel channel =
+        FileChannel.open(directory.resolve(String.format("%020d.seg", 0)), READ, WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {1}), HEADER + RECORD + HEADER + 1);
+    }
+
+    final Spool reopened = new Spool(directory, 4L * SEGMENT_SIZE, SEGMENT_SIZE);
+
+    assertFalse(reopened.isEmpty());
+    assertArrayEquals(record(0), reopened.peek().data);
+    reopened.commit(reopened.peek());
+    assertArrayEquals(record(2), reopened.peek().data);
+    assertEquals(1, reopened.dropped());
+    reopened.commit(reopened.peek());
+    assertNull(reopened.peek());
+    assertTrue(reopened.isEmpty());
+    reopened.close();
+  }
+
+  @Test
+  void corruptRecordsAreCountedUntilTheEndOfTheSegment() throws IOException {
+    final Path directory = createTempDirectory("spool");
+    final Spool spool = new Spool(directory, 4L * 1024, 1024);
+
+    for (int i = 0; i < 5; ++i) {
+      spool.append(record(i));
+    }
+
+    spool.close();
+
+    try (FileChannel channel =
+        FileChannel.open(directory.resolve(String.format("%020d.seg", 0)), READ, WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {1}), HEADER + 1);
+    }
+
+    final Spool reopened = new Spool(directory, 4L * 1024, 1024);
+
+    assertNull(reopened.peek());
+    assertEquals(5, reopened.dropped());
+    assertTrue(reopened.isEmpty());
+    reopened.close();
+  }
+
+  @Test
+  void retentionDropsTheOldestSegment() throws IOException {
+    final Spool spool = new Spool(createTempDirectory("spool"), 2L * SEGMENT_SIZE, SEGMENT_SIZE);
+
+    for (int i = 0; i < 6; ++i) {
+      assertTrue(spool.append(record(i)));
+    }
+
+    assertEquals(2, spool.dropped());
+
+    for (int i = 2; i < 6; ++i) {
+      final Spool.Entry entry = spool.peek();
+
+      assertArrayEquals(record(i), entry.data);
+      spool.commit(entry);
+    }
+
+    assertNull(spool.peek());
+    assertTrue(spool.isEmpty());
+    spool.close();
+  }
+
+  @Test
+  void segmentSizeIsValidated() throws IOException {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new Spool(createTempDirectory("spool"), Long.MAX_VALUE, 4L * 1024 * 1024 * 1024));
+    assertThrows(
+        IllegalArgumentException.class, () -> new Spool(createTempDirectory("spool"), 16, HEADER));
+    assertFalse(new Spool(createTempDirectory("spool"), 1024, 64).append(new byte[64]));
+  }
+}
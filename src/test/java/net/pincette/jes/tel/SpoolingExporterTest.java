@@ -0,0 +1,292 @@
+package net.pincette.jes.tel;
+
+import static java.lang.System.nanoTime;
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.Files.list;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.pincette.jes.tel.OtlpMarshalers.logsProtobuf;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.logs.SdkLoggerProvider;
+import io.opentelemetry.sdk.logs.data.LogRecordData;
+import io.opentelemetry.sdk.logs.export.LogRecordExporter;
+import io.opentelemetry.sdk.logs.export.SimpleLogRecordProcessor;
+import io.opentelemetry.sdk.testing.logs.TestLogRecordData;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+
+class SpoolingExporterTest {
+  private static final long MAX_SIZE = 1024 * 1024;
+  private static final int RECORDS = 6;
+  private static final String TENANT = "X-Tenant";
+  private static final int REPLAY_RATE = 20;
+  // Allow for some jitter of the scheduler.
+  private static final long MIN_INTERVAL_NANOS = SECONDS.toNanos(1) / REPLAY_RATE * 9 / 10;
+  private static final long SEGMENT_SIZE = 64 * 1024;
+
+  private static Config config(final Path directory) {
+    return ConfigFactory.parseMap(
+        Map.of(
+            "directory", directory.toString(),
+            "maxSize", MAX_SIZE,
+            "segmentSize", SEGMENT_SIZE,
+            "replayRate", REPLAY_RATE,
+            "retryInterval", "100ms"));
+  }
+
+  private static LogRecordExporter failingWhileDown(
+      final AtomicBoolean up, final AtomicInteger calls) {
+    return new LogRecordExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<LogRecordData> logs) {
+        calls.incrementAndGet();
+
+        return up.get() ? CompletableResultCode.ofSuccess() : CompletableResultCode.ofFailure();
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+      }
+    };
+  }
+
+  private static LogRecordExporter completingLater(
+      final List<Collection<LogRecordData>> batches, final Deque<CompletableResultCode> results) {
+    return new LogRecordExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<LogRecordData> logs) {
+        final CompletableResultCode result = new CompletableResultCode();
+
+        batches.add(logs);
+        results.addLast(result);
+
+        return result;
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+      }
+    };
+  }
+
+  private static boolean hasSegments(final Path directory) throws IOException {
+    try (Stream<Path> files = list(directory)) {
+      return files.anyMatch(f -> f.getFileName().toString().endsWith(".seg"));
+    }
+  }
+
+  private static LogRecordExporter recording(
+      final LogRecordExporter delegate, final List<Collection<LogRecordData>> batches) {
+    return new LogRecordExporter() {
+      @Override
+      public CompletableResultCode export(final Collection<LogRecordData> logs) {
+        batches.add(List.copyOf(logs));
+
+        return delegate.export(logs);
+      }
+
+      @Override
+      public CompletableResultCode flush() {
+        return delegate.flush();
+      }
+
+      @Override
+      public CompletableResultCode shutdown() {
+        return delegate.shutdown();
+      }
+    };
+  }
+
+  private static Collection<LogRecordData> record(final String body) {
+    return List.of(TestLogRecordData.builder().setBody(body).build());
+  }
+
+  private static void waitFor(final List<?> list, final int size) throws InterruptedException {
+    final long deadline = nanoTime() + SECONDS.toNanos(10);
+
+    while (list.size() < size && nanoTime() < deadline) {
+      MILLISECONDS.sleep(10);
+    }
+  }
+
+  @Test
+  void committedEntriesAreNotReplayedAfterReopen() throws IOException {
+    final Path directory = createTempDirectory("spool");
+    final Spool spool = new Spool(directory, MAX_SIZE, SEGMENT_SIZE);
+
+    spool.append(new byte[] {1});
+    spool.append(new byte[] {2});
+    spool.append(new byte[] {3});
+    spool.commit(spool.peek());
+    spool.close();
+
+    final Spool reopened = new Spool(directory, MAX_SIZE, SEGMENT_SIZE);
+
+    assertArrayEquals(new byte[] {2}, reopened.peek().data);
+    reopened.commit(reopened.peek());
+    reopened.commit(reopened.peek());
+    assertNull(reopened.peek());
+    reopened.close();
+
+    final Spool again = new Spool(directory, MAX_SIZE, SEGMENT_SIZE);
+
+    assertTrue(again.isEmpty());
+    again.close();
+  }
+
+  @Test
+  void heldBatchesGoToTheDelegateAfterSuccess() throws IOException {
+    final Path directory = createTempDirectory("spool");
+    final List<Collection<LogRecordData>> batches = new ArrayList<>();
+    final Deque<CompletableResultCode> results = new ArrayDeque<>();
+    final LogRecordExporter spooling =
+        SpoolingExporter.logRecordExporter(
+            completingLater(batches, results),
+            "http://localhost:1/v1/logs",
+            Map.of(),
+            "none",
+            config(directory));
+    final List<Collection<LogRecordData>> sent = List.of(record("0"), record("1"), record("2"));
+    final List<CompletableResultCode> exported = sent.stream().map(spooling::export).toList();
+
+    // The second and third batch are held while the first is in flight.
+    assertEquals(1, batches.size());
+    results.removeFirst().succeed();
+    assertEquals(2, batches.size());
+    results.removeFirst().succeed();
+    assertEquals(3, batches.size());
+    results.removeFirst().succeed();
+    assertEquals(sent, batches);
+    assertTrue(exported.stream().allMatch(CompletableResultCode::isSuccess));
+    spooling.shutdown();
+
+    final Spool reopened = new Spool(directory.resolve("logs"), MAX_SIZE, SEGMENT_SIZE);
+
+    assertTrue(reopened.isEmpty(), "Held batches were spooled");
+    reopened.close();
+  }
+
+  @Test
+  void failedExportsAreReplayedInOrder() throws IOException, InterruptedException {
+    final Path directory = createTempDirectory("spool");
+    final AtomicInteger delegated = new AtomicInteger();
+    final List<Collection<LogRecordData>> exported = new ArrayList<>();
+    final List<byte[]> received = new ArrayList<>();
+    final List<Long> receivedAt = new ArrayList<>();
+    final AtomicBoolean up = new AtomicBoolean();
+    final HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+    server.createContext(
+        "/v1/logs",
+        exchange -> {
+          try (HttpExchange e = exchange;
+              InputStream in = e.getRequestBody()) {
+            final byte[] body =
+                "gzip".equals(e.getRequestHeaders().getFirst("Content-Encoding"))
+                    ? new GZIPInputStream(in).readAllBytes()
+                    : in.readAllBytes();
+            final boolean available =
+                up.get() && "test".equals(e.getRequestHeaders().getFirst(TENANT));
+
+            if (available) {
+              synchronized (received) {
+                received.add(body);
+                receivedAt.add(nanoTime());
+              }
+            }
+
+            e.sendResponseHeaders(available ? 200 : 503, -1);
+          }
+        });
+    server.start();
+
+    try {
+      final LogRecordExporter spooling =
+          SpoolingExporter.logRecordExporter(
+              failingWhileDown(up, delegated),
+              "http://localhost:" + server.getAddress().getPort() + "/v1/logs",
+              Map.of(TENANT, "test"),
+              "gzip",
+              config(directory));
+      final SdkLoggerProvider provider =
+          SdkLoggerProvider.builder()
+              .addLogRecordProcessor(SimpleLogRecordProcessor.create(recording(spooling, exported)))
+              .build();
+
+      for (int i = 0; i < RECORDS - 1; ++i) {
+        provider.get("test").logRecordBuilder().setBody(String.valueOf(i)).emit();
+      }
+
+      // Only the first export fails. The others go to the spool directly.
+      assertEquals(1, delegated.get());
+      assertTrue(hasSegments(directory.resolve("logs")));
+      assertTrue(received.isEmpty());
+
+      up.set(true);
+
+      // The spool isn't empty, so this one must be spooled behind the others.
+      provider.get("test").logRecordBuilder().setBody(String.valueOf(RECORDS - 1)).emit();
+      assertEquals(1, delegated.get());
+      waitFor(received, RECORDS);
+
+      synchronized (received) {
+        assertEquals(RECORDS, received.size());
+
+        for (int i = 0; i < RECORDS; ++i) {
+          assertArrayEquals(logsProtobuf(exported.get(i)), received.get(i));
+        }
+
+        for (int i = 1; i < RECORDS; ++i) {
+          assertTrue(
+              receivedAt.get(i) - receivedAt.get(i - 1) >= MIN_INTERVAL_NANOS,
+              "The replay rate was exceeded");
+        }
+      }
+
+      provider.close();
+    } finally {
+      server.stop(0);
+    }
+
+    final Spool reopened = new Spool(directory.resolve("logs"), MAX_SIZE, SEGMENT_SIZE);
+
+    assertTrue(reopened.isEmpty(), "Committed records are replayed again");
+    reopened.close();
+  }
+}
@@ -0,0 +1,152 @@
+package net.pincette.jes.tel;
+
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static net.pincette.jes.tel.StageMetrics.stageMetrics;
+import static net.pincette.jes.tel.Stress.COLLECTION_INTERVAL_NANOS;
+import static net.pincette.jes.tel.Stress.ITERATIONS;
+import static net.pincette.jes.tel.Stress.histogramCount;
+import static net.pincette.jes.tel.Stress.longSum;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import java.util.Collection;
+import java.util.concurrent.Flow.Processor;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class StageMetricsTest {
+  private static long demand(final Collection<MetricData> metrics) {
+    return metrics.stream()
+        .filter(m -> m.getName().equals("rs.stage.demand"))
+        .flatMap(m -> m.getLongGaugeData().getPoints().stream())
+        .mapToLong(LongPointData::getValue)
+        .findFirst()
+        .orElseThrow();
+  }
+
+  private static Subscriber<Integer> downstream(final AtomicReference<Subscription> subscription) {
+    return new Subscriber<>() {
+      @Override
+      public void onComplete() {
+        // Not used.
+      }
+
+      @Override
+      public void onError(final Throwable throwable) {
+        // Not used.
+      }
+
+      @Override
+      public void onNext(final Integer item) {
+        // Only counted.
+      }
+
+      @Override
+      public void onSubscribe(final Subscription s) {
+        subscription.set(s);
+      }
+    };
+  }
+
+  private static Subscription upstream(final AtomicLong requested) {
+    return new Subscription() {
+      @Override
+      public void cancel() {
+        // Nothing to cancel.
+      }
+
+      @Override
+      public void request(final long n) {
+        requested.accumulateAndGet(n, (r, m) -> r + m < 0 ? Long.MAX_VALUE : r + m);
+      }
+    };
+  }
+
+  @Test
+  void demandFollowsRequestsAndItems() {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Processor<Integer, Integer> stage = stageMetrics(provider.get("test"), "stage");
+      final AtomicLong requested = new AtomicLong();
+      final AtomicReference<Subscription> subscription = new AtomicReference<>();
+
+      stage.subscribe(downstream(subscription));
+      stage.onSubscribe(upstream(requested));
+      subscription.get().request(10);
+
+      for (int i = 0; i < 4; ++i) {
+        stage.onNext(i);
+      }
+
+      final Collection<MetricData> metrics = reader.collectAllMetrics();
+
+      assertEquals(10, requested.get());
+      assertEquals(6, demand(metrics));
+      assertEquals(4, longSum(metrics, "rs.stage.items", null));
+      assertEquals(4, histogramCount(metrics, "rs.stage.duration"));
+      subscription.get().request(Long.MAX_VALUE);
+      assertEquals(-1, demand(reader.collectAllMetrics()));
+    }
+  }
+
+  /** Requests, items and collections all come from different threads. */
+  @Test
+  void demandStaysConsistentWhileCollecting() throws InterruptedException {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Processor<Integer, Integer> stage = stageMetrics(provider.get("test"), "stage");
+      final AtomicLong requested = new AtomicLong();
+      final AtomicReference<Subscription> subscription = new AtomicReference<>();
+
+      stage.subscribe(downstream(subscription));
+      stage.onSubscribe(upstream(requested));
+
+      final Thread requester =
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    for (int i = 0; i < ITERATIONS; ++i) {
+                      subscription.get().request(1);
+                    }
+                  });
+      final Thread emitter =
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    for (int i = 0; i < ITERATIONS; ++i) {
+                      while (requested.get() <= i) {
+                        Thread.onSpinWait();
+                      }
+
+                      stage.onNext(i);
+                    }
+                  });
+
+      while (emitter.isAlive()) {
+        final long demand = demand(reader.collectAllMetrics());
+
+        assertTrue(demand >= 0 && demand <= ITERATIONS, "demand " + demand);
+        parkNanos(COLLECTION_INTERVAL_NANOS);
+      }
+
+      requester.join();
+      emitter.join();
+
+      final Collection<MetricData> metrics = reader.collectAllMetrics();
+
+      assertEquals(0, demand(metrics));
+      assertEquals(ITERATIONS, longSum(metrics, "rs.stage.items", null));
+    }
+  }
+}
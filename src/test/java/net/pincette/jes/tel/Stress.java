@@ -0,0 +1,110 @@
+package net.pincette.jes.tel;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.metrics.data.HistogramPointData;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs work from many platform and virtual threads at the same time, while another thread keeps
+ * collecting the metrics.
+ *
+ * @author Werner Donné
+ */
+class Stress {
+  static final long COLLECTION_INTERVAL_NANOS = 100000;
+  static final int ITERATIONS = 10000;
+  static final int PLATFORM_THREADS = 8;
+  static final int VIRTUAL_THREADS = 64;
+  static final int THREADS = PLATFORM_THREADS + VIRTUAL_THREADS;
+
+  private Stress() {}
+
+  /**
+   * Collects while the work runs and returns all the collections, including a final one after the
+   * work has finished.
+   *
+   * @param reader the reader that is collected.
+   * @param work the work, which receives the index of the thread.
+   * @return The collections.
+   */
+  static List<Collection<MetricData>> run(
+      final InMemoryMetricReader reader, final IntConsumer work) throws InterruptedException {
+    final List<Collection<MetricData>> collections = new ArrayList<>();
+    final AtomicBoolean done = new AtomicBoolean();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<>();
+    final Thread collector =
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  while (!done.get()) {
+                    collections.add(reader.collectAllMetrics());
+                    parkNanos(COLLECTION_INTERVAL_NANOS);
+                  }
+                });
+
+    for (int i = 0; i < THREADS; ++i) {
+      final int index = i;
+      final Runnable runnable =
+          () -> {
+            try {
+              start.await();
+              work.accept(index);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          };
+
+      threads.add(
+          i < PLATFORM_THREADS
+              ? Thread.ofPlatform().start(runnable)
+              : Thread.ofVirtual().start(runnable));
+    }
+
+    start.countDown();
+
+    try {
+      for (final Thread thread : threads) {
+        thread.join(MINUTES.toMillis(1));
+        assertFalse(thread.isAlive(), "A worker thread didn't finish in time");
+      }
+    } finally {
+      done.set(true);
+      collector.join();
+    }
+
+    collections.add(reader.collectAllMetrics());
+
+    return collections;
+  }
+
+  static long histogramCount(final Collection<MetricData> metrics, final String name) {
+    return metrics.stream()
+        .filter(m -> m.getName().equals(name))
+        .flatMap(m -> m.getHistogramData().getPoints().stream())
+        .mapToLong(HistogramPointData::getCount)
+        .sum();
+  }
+
+  static long longSum(
+      final Collection<MetricData> metrics, final String name, final Attributes attributes) {
+    return metrics.stream()
+        .filter(m -> m.getName().equals(name))
+        .flatMap(m -> m.getLongSumData().getPoints().stream())
+        .filter(p -> attributes == null || p.getAttributes().equals(attributes))
+        .mapToLong(LongPointData::getValue)
+        .sum();
+  }
+}
@@ -0,0 +1,52 @@
+package net.pincette.jes.tel;
+
+import static net.pincette.jes.tel.TraceIds.INVALID;
+import static net.pincette.jes.tel.TraceIds.fromHex;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TraceIdsTest {
+  private static final String SPAN_ID = "00f067aa0ba902b7";
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+  private static final String UUID = "4bf92f35-77b3-4da6-a3ce-929d0e0e4736";
+
+  @Test
+  void hexadecimalAndUuidAreTheSame() {
+    final TraceIds hex = fromHex(TRACE_ID, SPAN_ID);
+
+    assertTrue(hex.isValid());
+    assertTrue(hex.hasSpanId());
+    assertEquals(TRACE_ID, hex.traceIdHex());
+    assertEquals(SPAN_ID, hex.spanIdHex());
+    assertEquals(hex, fromHex(UUID, SPAN_ID));
+    assertEquals(hex, fromHex(TRACE_ID.toUpperCase(), SPAN_ID.toUpperCase()));
+    assertEquals(0x4bf92f3577b34da6L, hex.traceIdHigh);
+    assertEquals(0xa3ce929d0e0e4736L, hex.traceIdLow);
+  }
+
+  @Test
+  void malformedTraceIdsAreInvalid() {
+    assertSame(INVALID, fromHex(null, SPAN_ID));
+    assertSame(INVALID, fromHex("", SPAN_ID));
+    assertSame(INVALID, fromHex(TRACE_ID.substring(1), SPAN_ID));
+    assertSame(INVALID, fromHex(TRACE_ID + "0", SPAN_ID));
+    assertSame(INVALID, fromHex(TRACE_ID.replace('f', 'g'), SPAN_ID));
+    assertSame(INVALID, fromHex(TRACE_ID.replace('4', '٤'), SPAN_ID));
+    assertSame(INVALID, fromHex("4bf92f3577b3-4da6-a3ce-929d0e0e4736", SPAN_ID));
+    assertSame(INVALID, fromHex("4bf92f35-77b3-4da6-a3ce-929d0e0e473-", SPAN_ID));
+    assertSame(INVALID, fromHex("00000000000000000000000000000000", SPAN_ID));
+  }
+
+  @Test
+  void missingOrMalformedSpanIdIsAbsent() {
+    assertFalse(fromHex(TRACE_ID, null).hasSpanId());
+    assertFalse(fromHex(TRACE_ID, SPAN_ID.substring(1)).hasSpanId());
+    assertTrue(fromHex(TRACE_ID, null).isValid());
+    assertFalse(fromHex(TRACE_ID, null).spanContext().isValid());
+    assertTrue(fromHex(TRACE_ID, SPAN_ID).spanContext().isValid());
+  }
+}
@@ -0,0 +1,113 @@
+package net.pincette.jes.tel;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+import static java.time.Duration.ofMinutes;
+import static net.pincette.jes.tel.Stress.longSum;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.HistogramPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import org.junit.jupiter.api.Test;
+
+class TraceLatencyTest {
+  private static final AttributeKey<String> FROM = stringKey("event.trace.from");
+  private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+  private static final AttributeKey<String> TO = stringKey("event.trace.to");
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+  private static final String UUID = "4BF92F35-77B3-4DA6-A3CE-929D0E0E4736";
+
+  private static HistogramPointData point(
+      final Collection<MetricData> metrics, final String name, final String from, final String to) {
+    return metrics.stream()
+        .filter(m -> m.getName().equals(name))
+        .flatMap(m -> m.getHistogramData().getPoints().stream())
+        .filter(p -> p.getAttributes().equals(Attributes.of(FROM, from, TO, to)))
+        .findFirst()
+        .orElse(null);
+  }
+
+  private static Subscriber<EventTrace> subscriber(
+      final SdkMeterProvider provider, final int maxTraces) {
+    final Subscriber<EventTrace> subscriber =
+        TraceLatency.subscriber(provider.get("test"), ofMinutes(1), maxTraces);
+
+    subscriber.onSubscribe(
+        new Subscription() {
+          @Override
+          public void cancel() {
+            // Nothing to cancel.
+          }
+
+          @Override
+          public void request(final long n) {
+            // The test pushes regardless of the demand.
+          }
+        });
+
+    return subscriber;
+  }
+
+  private static EventTrace trace(final String traceId, final String service, final long second) {
+    return new EventTrace()
+        .withTraceId(traceId)
+        .withServiceName(service)
+        .withTimestamp(START.plusSeconds(second));
+  }
+
+  @Test
+  void hopsAndDurations() {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Subscriber<EventTrace> subscriber = subscriber(provider, 10);
+
+      subscriber.onNext(trace(TRACE_ID, "a", 0));
+      subscriber.onNext(trace(UUID, "b", 1)); // The same trace.
+      subscriber.onNext(trace(TRACE_ID, "x", 0)); // Out of order, so ignored.
+      subscriber.onNext(trace(TRACE_ID, "c", 3));
+      subscriber.onNext(new EventTrace().withServiceName("d").withTimestamp(START)); // No ID.
+
+      final Collection<MetricData> metrics = reader.collectAllMetrics();
+
+      assertEquals(1.0, point(metrics, "event.trace.hop.duration", "a", "b").getSum(), 1e-9);
+      assertEquals(2.0, point(metrics, "event.trace.hop.duration", "b", "c").getSum(), 1e-9);
+      assertEquals(1.0, point(metrics, "event.trace.duration", "a", "b").getSum(), 1e-9);
+      assertEquals(3.0, point(metrics, "event.trace.duration", "a", "c").getSum(), 1e-9);
+      assertEquals(
+          2,
+          metrics.stream()
+              .filter(m -> m.getName().equals("event.trace.hop.duration"))
+              .flatMap(m -> m.getHistogramData().getPoints().stream())
+              .mapToLong(HistogramPointData::getCount)
+              .sum());
+    }
+  }
+
+  @Test
+  void leastRecentlyUsedTraceIsEvicted() {
+    final InMemoryMetricReader reader = InMemoryMetricReader.create();
+
+    try (SdkMeterProvider provider =
+        SdkMeterProvider.builder().registerMetricReader(reader).build()) {
+      final Subscriber<EventTrace> subscriber = subscriber(provider, 1);
+
+      subscriber.onNext(trace(TRACE_ID, "a", 0));
+      subscriber.onNext(trace("00000000000000000000000000000001", "a", 0));
+      subscriber.onNext(trace(TRACE_ID, "b", 1)); // Starts over, so no hop.
+
+      final Collection<MetricData> metrics = reader.collectAllMetrics();
+
+      assertEquals(2, longSum(metrics, "event.trace.evicted", null));
+      assertEquals(null, point(metrics, "event.trace.hop.duration", "a", "b"));
+    }
+  }
+}